@@ -0,0 +1,107 @@
+package com.pixiv.muzei.pixivsource.benchmark;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.pixiv.muzei.pixivsource.FeedPage;
+import com.pixiv.muzei.pixivsource.Illust;
+import com.pixiv.muzei.pixivsource.IllustParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+// Streaming IllustParser against the tree walk doWork() used to do with
+// Json.parse(resp.body().string()).
+@State(Scope.Benchmark)
+public class FeedParsingBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({Fixtures.RANKING_DAILY, Fixtures.ILLUST_FOLLOW})
+    public String fixture;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = Fixtures.load(fixture);
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) throws IOException {
+        FeedPage page = IllustParser.parse(
+                new InputStreamReader(new ByteArrayInputStream(payload), UTF_8)
+        );
+        for (Illust illust : page.illusts) {
+            blackhole.consume(illust.getToken());
+            blackhole.consume(illust.title);
+            blackhole.consume(illust.userName);
+        }
+    }
+
+    @Benchmark
+    public void tree(Blackhole blackhole) throws IOException {
+        JsonObject ranking = Json.parse(new String(payload, UTF_8)).asObject();
+        for (JsonValue item : getContents(ranking)) {
+            JsonObject content = item.asObject();
+            blackhole.consume(getIllustId(content) + "." + getRestrictMode(content));
+            blackhole.consume(content.getString("title", ""));
+            blackhole.consume(getUserName(content));
+        }
+    }
+
+    // the field extraction PixivArtWorker did before IllustParser
+
+    private static JsonArray getContents(JsonObject ranking) throws IOException {
+        JsonValue contents = ranking.get("contents");
+        if (contents != null) {
+            return contents.asArray();
+        }
+        contents = ranking.get("illusts");
+        if (contents != null) {
+            return contents.asArray();
+        }
+        throw new IOException("Not found contents");
+    }
+
+    private static int getIllustId(JsonObject content) {
+        int illustId = content.getInt("id", -1);
+        if (illustId >= 0) {
+            return illustId;
+        }
+        return content.getInt("illust_id", -1);
+    }
+
+    private static int getRestrictMode(JsonObject content) {
+        int restrict = content.getInt("restrict", -1);
+        if (restrict >= 0) {
+            return restrict;
+        }
+        JsonValue contentType = content.get("illust_content_type");
+        if (contentType == null) {
+            return -1;
+        }
+        return contentType.asObject().getInt("sexual", -1);
+    }
+
+    private static String getUserName(JsonObject content) {
+        String username = content.getString("user_name", null);
+        if (username != null) {
+            return username;
+        }
+        JsonValue user = content.get("user");
+        if (user == null) {
+            return "";
+        }
+        return user.asObject().getString("name", "");
+    }
+}
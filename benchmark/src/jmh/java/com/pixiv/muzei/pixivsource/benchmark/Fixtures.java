@@ -0,0 +1,32 @@
+package com.pixiv.muzei.pixivsource.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Recorded-shape Pixiv responses under src/jmh/resources/fixtures.
+final class Fixtures {
+    static final String RANKING_DAILY = "ranking_daily.json";
+    static final String ILLUST_FOLLOW = "illust_follow.json";
+
+    private Fixtures() {
+    }
+
+    static byte[] load(String name) throws IOException {
+        InputStream stream = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (stream == null) {
+            throw new IOException("Missing fixture: " + name);
+        }
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = stream.read(chunk)) > 0) {
+                buffer.write(chunk, 0, read);
+            }
+            return buffer.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
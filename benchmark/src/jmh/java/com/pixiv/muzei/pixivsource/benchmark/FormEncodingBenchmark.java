@@ -0,0 +1,31 @@
+package com.pixiv.muzei.pixivsource.benchmark;
+
+import com.eclipsesource.json.JsonObject;
+import com.pixiv.muzei.pixivsource.FormEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Encoding of the OAuth request body sent by sendPostRequest.
+@State(Scope.Benchmark)
+public class FormEncodingBenchmark {
+    private JsonObject data;
+
+    @Setup
+    public void setUp() {
+        data = new JsonObject();
+        data.add("get_secure_url", 1);
+        data.add("client_id", "bYGKuGVw91e0NMfPGp44euvGt59s");
+        data.add("client_secret", "HP3RmkgAmEGro0gn1x9ioawQE8WMfvLXDz3ZqxpK");
+        data.add("grant_type", "password");
+        data.add("username", "user@example.com");
+        data.add("password", "correct horse battery staple");
+    }
+
+    @Benchmark
+    public String encode() {
+        return FormEncoder.encode(data);
+    }
+}
@@ -0,0 +1,48 @@
+package com.pixiv.muzei.pixivsource.benchmark;
+
+import com.pixiv.muzei.pixivsource.FeedPage;
+import com.pixiv.muzei.pixivsource.Illust;
+import com.pixiv.muzei.pixivsource.IllustParser;
+import com.pixiv.muzei.pixivsource.OriginalImageUrls;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+// IMAGE_URI_PATTERN rewriting of ranking.php thumbnails into original
+// image candidates, for one whole ranking page.
+@State(Scope.Benchmark)
+public class OriginalUrlBenchmark {
+    private String[] thumbnails;
+
+    @Setup
+    public void setUp() throws IOException {
+        FeedPage page = IllustParser.parse(new InputStreamReader(
+                new ByteArrayInputStream(Fixtures.load(Fixtures.RANKING_DAILY)),
+                Charset.forName("UTF-8")
+        ));
+        List<String> urls = new ArrayList<>();
+        for (Illust illust : page.illusts) {
+            if (illust.url != null) {
+                urls.add(illust.url);
+            }
+        }
+        thumbnails = urls.toArray(new String[urls.size()]);
+    }
+
+    @Benchmark
+    public void candidates(Blackhole blackhole) {
+        for (String thumbnail : thumbnails) {
+            blackhole.consume(OriginalImageUrls.getCandidates(thumbnail));
+        }
+    }
+}
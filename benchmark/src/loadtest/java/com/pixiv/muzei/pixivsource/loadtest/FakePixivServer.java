@@ -0,0 +1,295 @@
+package com.pixiv.muzei.pixivsource.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+// Local stand-in for www.pixiv.net, app-api.pixiv.net, oauth.secure.pixiv.net
+// and i.pximg.net.  Every host is served by the same MockWebServer; the
+// client rewrites the URLs, see HostRewriter.
+class FakePixivServer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern ID_PATTERN = Pattern.compile("\"id\": (\\d+)");
+    private static final Pattern OFFSET_PATTERN = Pattern.compile("offset=(\\d+)");
+    private static final Pattern NEXT_URL_PATTERN = Pattern.compile("\"next_url\": \"[^\"]*\"");
+    private static final Pattern ORIGINAL_URL_PATTERN = Pattern.compile("https://i\\.pximg\\.net(/img-original/[^\"]+)");
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d+)-$");
+    private static final String LAST_MODIFIED = "Wed, 01 May 2019 00:00:00 GMT";
+    private static final int FOLLOW_PAGE_SIZE = 30;
+    private static final int FOLLOW_PAGES = 10;
+    // kept here, a logger nobody references loses its level
+    private static final Logger SERVER_LOGGER = Logger.getLogger(MockWebServer.class.getName());
+
+    static class Config {
+        long latencyMillis = 50;
+        // 0 for unlimited
+        long bandwidthKbps = 0;
+        double failureRate = 0;
+        int minImageKb = 300;
+        int maxImageKb = 3000;
+        long seed = 1;
+    }
+
+    private final Config config;
+    private final MockWebServer server = new MockWebServer();
+    private final Random failures;
+    private final byte[] imageBytes;
+    private final String ranking;
+    private final String follow;
+    private final String oauth;
+    // originals app-api hands out, which exist whatever their extension
+    private final Set<String> listedOriginals = new HashSet<>();
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong feedRequests = new AtomicLong();
+    final AtomicLong oauthRequests = new AtomicLong();
+    final AtomicLong probeRequests = new AtomicLong();
+    final AtomicLong imageRequests = new AtomicLong();
+    final AtomicLong notModifiedRequests = new AtomicLong();
+    final AtomicLong resumedRequests = new AtomicLong();
+    final AtomicLong failedRequests = new AtomicLong();
+    final AtomicLong bytesServed = new AtomicLong();
+
+    FakePixivServer(Config config) throws IOException {
+        this.config = config;
+        this.failures = new Random(config.seed);
+        // random bytes don't compress, like real JPEG and PNG bodies
+        this.imageBytes = new byte[config.maxImageKb * 1024];
+        new Random(config.seed).nextBytes(imageBytes);
+        this.ranking = loadFixture("ranking_daily.json");
+        this.follow = loadFixture("illust_follow.json");
+        this.oauth = loadFixture("oauth_token.json");
+        final Matcher originalMatcher = ORIGINAL_URL_PATTERN.matcher(follow);
+        while (originalMatcher.find()) {
+            listedOriginals.add(originalMatcher.group(1));
+        }
+        // one line per request would drown the report
+        SERVER_LOGGER.setLevel(Level.WARNING);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                return FakePixivServer.this.dispatch(request);
+            }
+        });
+    }
+
+    void start() throws IOException {
+        server.start();
+    }
+
+    void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    HttpUrl url() {
+        return server.url("/");
+    }
+
+    void resetCounters() {
+        requests.set(0);
+        feedRequests.set(0);
+        oauthRequests.set(0);
+        probeRequests.set(0);
+        imageRequests.set(0);
+        notModifiedRequests.set(0);
+        resumedRequests.set(0);
+        failedRequests.set(0);
+        bytesServed.set(0);
+    }
+
+    private MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        if (config.latencyMillis > 0) {
+            Thread.sleep(config.latencyMillis);
+        }
+        requests.incrementAndGet();
+        final String path = request.getPath();
+        final boolean head = "HEAD".equals(request.getMethod());
+        if (path.startsWith("/img-original/") || path.startsWith("/c/") || path.startsWith("/img-master/")) {
+            if (head) {
+                probeRequests.incrementAndGet();
+            } else {
+                imageRequests.incrementAndGet();
+            }
+            final MockResponse response = image(request, head);
+            if (shouldFail()) {
+                return fail(response, head);
+            }
+            if (!head) {
+                bytesServed.addAndGet(getBodySize(response));
+            }
+            return response;
+        }
+
+        final MockResponse response;
+        if (path.startsWith("/auth/token")) {
+            oauthRequests.incrementAndGet();
+            response = json(oauth);
+        } else if (path.startsWith("/ranking.php") || path.startsWith("/v1/illust/ranking")) {
+            feedRequests.incrementAndGet();
+            response = json(ranking);
+        } else if (path.startsWith("/v2/illust/follow") || path.startsWith("/v1/user/bookmarks/illust")) {
+            feedRequests.incrementAndGet();
+            response = json(followPage(path));
+        } else {
+            return new MockResponse().setResponseCode(404);
+        }
+        if (shouldFail()) {
+            return fail(response, false);
+        }
+        bytesServed.addAndGet(getBodySize(response));
+        return response;
+    }
+
+    private boolean shouldFail() {
+        synchronized (failures) {
+            return config.failureRate > 0 && failures.nextDouble() < config.failureRate;
+        }
+    }
+
+    private MockResponse fail(MockResponse response, boolean head) {
+        failedRequests.incrementAndGet();
+        final long size = getBodySize(response);
+        synchronized (failures) {
+            if (head || size == 0 || failures.nextBoolean()) {
+                return new MockResponse().setResponseCode(503);
+            }
+        }
+        // the body stops halfway, which is what resuming downloads is for
+        bytesServed.addAndGet(size / 2);
+        return response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+    }
+
+    // Answers If-None-Match with 304 and a Range whose If-Range still
+    // matches with the rest of the image, like i.pximg.net.
+    private MockResponse image(RecordedRequest request, boolean head) {
+        final String path = request.getPath();
+        final int hash = path.replaceFirst("\\.[a-z]+$", "").hashCode() & Integer.MAX_VALUE;
+        // every original is there as JPEG and a third also as PNG, which the
+        // suffix probe for ranking.php thumbnails prefers; app-api's are
+        // there as listed
+        if (path.startsWith("/img-original/") && !listedOriginals.contains(path)
+                && !path.endsWith(".jpg") && !(path.endsWith(".png") && hash % 3 == 0)) {
+            return new MockResponse().setResponseCode(404);
+        }
+        int kb = config.minImageKb;
+        if (config.maxImageKb > config.minImageKb) {
+            kb += hash % (config.maxImageKb - config.minImageKb);
+        }
+        if (path.startsWith("/c/") || path.startsWith("/img-master/")) {
+            // resized variants are a fraction of the original
+            kb = Math.max(kb / 6, 1);
+        }
+        final int length = kb * 1024;
+        final String etag = "\"" + Integer.toHexString(hash) + "\"";
+        final MockResponse response = new MockResponse()
+                .setHeader("Content-Type", "image/jpeg")
+                .setHeader("ETag", etag)
+                .setHeader("Last-Modified", LAST_MODIFIED);
+        if (head) {
+            return response.setHeader("Content-Length", length);
+        }
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            notModifiedRequests.incrementAndGet();
+            return response.setResponseCode(304);
+        }
+        final int from = getRangeStart(request, etag);
+        if (from > 0 && from < length) {
+            resumedRequests.incrementAndGet();
+            return throttle(response.setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + from + "-" + (length - 1) + "/" + length)
+                    .setBody(new Buffer().write(imageBytes, from, length - from)));
+        }
+        return throttle(response.setBody(new Buffer().write(imageBytes, 0, length)));
+    }
+
+    // The offset of "Range: bytes=N-", unless If-Range names another version.
+    private static int getRangeStart(RecordedRequest request, String etag) {
+        final String range = request.getHeader("Range");
+        final Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range);
+        if (matcher == null || !matcher.matches()) {
+            return 0;
+        }
+        final String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !ifRange.equals(etag) && !ifRange.equals(LAST_MODIFIED)) {
+            return 0;
+        }
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    // Without copying the body, which getBody() would.
+    private static long getBodySize(MockResponse response) {
+        final String length = response.getHeaders().get("Content-Length");
+        return length != null ? Long.parseLong(length) : 0;
+    }
+
+    // Serves the recorded follow page with the illust ids shifted, so every
+    // page holds different illusts.
+    private String followPage(String path) {
+        final Matcher offsetMatcher = OFFSET_PATTERN.matcher(path);
+        final int offset = offsetMatcher.find() ? Integer.parseInt(offsetMatcher.group(1)) : 0;
+        if (offset == 0) {
+            return follow;
+        }
+        final StringBuffer page = new StringBuffer();
+        final Matcher idMatcher = ID_PATTERN.matcher(follow);
+        while (idMatcher.find()) {
+            idMatcher.appendReplacement(page, "\"id\": " + (Long.parseLong(idMatcher.group(1)) + offset));
+        }
+        idMatcher.appendTail(page);
+        final int nextOffset = offset + FOLLOW_PAGE_SIZE;
+        final String nextUrl = nextOffset < FOLLOW_PAGE_SIZE * FOLLOW_PAGES
+                ? "\"https://app-api.pixiv.net/v2/illust/follow?restrict=public&offset=" + nextOffset + "\""
+                : "null";
+        return NEXT_URL_PATTERN.matcher(page).replaceFirst(Matcher.quoteReplacement("\"next_url\": " + nextUrl));
+    }
+
+    private MockResponse json(String body) {
+        return throttle(new MockResponse()
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(body));
+    }
+
+    private MockResponse throttle(MockResponse response) {
+        if (config.bandwidthKbps > 0) {
+            // kilobits per second, in 100ms slices
+            response.throttleBody(config.bandwidthKbps * 1000 / 8 / 10, 100, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+    private static String loadFixture(String name) throws IOException {
+        final InputStream stream = FakePixivServer.class.getResourceAsStream("/fixtures/" + name);
+        if (stream == null) {
+            throw new IOException("Missing fixture: " + name);
+        }
+        try {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[8192];
+            int read;
+            while ((read = stream.read(chunk)) > 0) {
+                buffer.write(chunk, 0, read);
+            }
+            return new String(buffer.toByteArray(), UTF_8);
+        } finally {
+            stream.close();
+        }
+    }
+}
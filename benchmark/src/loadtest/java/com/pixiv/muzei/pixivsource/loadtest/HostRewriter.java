@@ -0,0 +1,31 @@
+package com.pixiv.muzei.pixivsource.loadtest;
+
+import java.io.IOException;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// Sends requests for any Pixiv host to the fake server, keeping the path and
+// query so the server can tell feeds, OAuth and images apart.  Responses
+// carry the original request, whose URL ImageFetcher keeps with validators.
+class HostRewriter implements Interceptor {
+    private final HttpUrl target;
+
+    HostRewriter(HttpUrl target) {
+        this.target = target;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final HttpUrl url = request.url().newBuilder()
+                .scheme(target.scheme())
+                .host(target.host())
+                .port(target.port())
+                .build();
+        final Response response = chain.proceed(request.newBuilder().url(url).build());
+        return response.newBuilder().request(request).build();
+    }
+}
@@ -0,0 +1,175 @@
+package com.pixiv.muzei.pixivsource.loadtest;
+
+import com.pixiv.muzei.pixivsource.KeyValueStore;
+import com.pixiv.muzei.pixivsource.Platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// The load test's stand-in for the app: in-memory stores in place of
+// SharedPreferences and a temporary directory in place of the cache and
+// files directories.  Both outlive a run, like the app's do between worker
+// runs, until clear().
+class JvmPlatform implements Platform {
+    private final File directory;
+    private final boolean verbose;
+    private final Map<String, MemoryStore> stores = new HashMap<>();
+
+    JvmPlatform(boolean verbose) throws IOException {
+        this.directory = File.createTempFile("loadtest", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        this.verbose = verbose;
+    }
+
+    @Override
+    public synchronized KeyValueStore getStore(String name) {
+        MemoryStore store = stores.get(name);
+        if (store == null) {
+            store = new MemoryStore();
+            stores.put(name, store);
+        }
+        return store;
+    }
+
+    @Override
+    public File getCacheDir() {
+        return getDirectory("cache");
+    }
+
+    @Override
+    public File getFilesDir() {
+        return getDirectory("files");
+    }
+
+    @Override
+    public void log(String tag, String message) {
+        if (verbose) {
+            System.out.println("  " + tag + ": " + message);
+        }
+    }
+
+    @Override
+    public void warn(String tag, String message) {
+        System.out.println("  " + tag + ": " + message);
+    }
+
+    // Forgets everything, as if the app was installed afresh.
+    synchronized void clear() {
+        stores.clear();
+        delete(getCacheDir());
+        delete(getFilesDir());
+    }
+
+    void shutdown() {
+        clear();
+        directory.delete();
+    }
+
+    private File getDirectory(String name) {
+        final File dir = new File(directory, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class MemoryStore implements KeyValueStore {
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public synchronized String getString(String key, String defaultValue) {
+            final Object value = values.get(key);
+            return value != null ? (String) value : defaultValue;
+        }
+
+        @Override
+        public synchronized long getLong(String key, long defaultValue) {
+            final Object value = values.get(key);
+            return value != null ? (Long) value : defaultValue;
+        }
+
+        @Override
+        public synchronized float getFloat(String key, float defaultValue) {
+            final Object value = values.get(key);
+            return value != null ? (Float) value : defaultValue;
+        }
+
+        @Override
+        public synchronized Set<String> getKeys() {
+            return new HashSet<>(values.keySet());
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        // Changes take effect together on apply(), as with SharedPreferences;
+        // a null value removes the key.
+        private class MemoryEditor implements Editor {
+            private final Map<String, Object> changes = new LinkedHashMap<>();
+            private boolean clear = false;
+
+            @Override
+            public Editor putString(String key, String value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                changes.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                clear = true;
+                return this;
+            }
+
+            @Override
+            public void apply() {
+                synchronized (MemoryStore.this) {
+                    if (clear) {
+                        values.clear();
+                    }
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        if (change.getValue() == null) {
+                            values.remove(change.getKey());
+                        } else {
+                            values.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
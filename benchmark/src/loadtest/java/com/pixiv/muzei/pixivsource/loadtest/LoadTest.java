@@ -0,0 +1,268 @@
+package com.pixiv.muzei.pixivsource.loadtest;
+
+import com.eclipsesource.json.JsonArray;
+import com.pixiv.muzei.pixivsource.ArtworkDiskCache;
+import com.pixiv.muzei.pixivsource.ArtworkRefresh;
+import com.pixiv.muzei.pixivsource.ArtworkSource;
+import com.pixiv.muzei.pixivsource.FeedClient;
+import com.pixiv.muzei.pixivsource.FetchPolicy;
+import com.pixiv.muzei.pixivsource.HostCircuitBreaker;
+import com.pixiv.muzei.pixivsource.Illust;
+import com.pixiv.muzei.pixivsource.IllustFilter;
+import com.pixiv.muzei.pixivsource.ImageFetcher;
+import com.pixiv.muzei.pixivsource.ImageMetadataStore;
+import com.pixiv.muzei.pixivsource.OriginalUrlCache;
+import com.pixiv.muzei.pixivsource.PixivHttpClient;
+import com.pixiv.muzei.pixivsource.RunMetrics;
+import com.pixiv.muzei.pixivsource.SyncCheckpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import okhttp3.OkHttpClient;
+
+// Offline end-to-end load test of a refresh.  It runs what
+// PixivArtWorker.doWork() runs, FeedClient, ArtworkRefresh and ImageFetcher,
+// against a local fake server.  The stores and the cache directory are kept
+// between runs like the app keeps them between worker runs, so later runs
+// show what the feed cache, the seen history and the checkpoint save; pass
+// --cold to start every run from scratch.  Publishing to the ContentProvider
+// needs an Android runtime and is left out.
+//
+//     gradle :benchmark:loadtest -Pargs="--mode=follow --latency-ms=80 --failure-rate=0.02"
+public class LoadTest {
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private static class Options {
+        String mode = "daily_rank";
+        String imageVariant = FetchPolicy.ORIGINAL;
+        String mixedWeights = "daily_rank:2,weekly_rank:1,monthly_rank:1";
+        int concurrency = 4;
+        int maxRequestsPerHost = PixivHttpClient.DEFAULT_MAX_REQUESTS_PER_HOST;
+        int poolSize = 60;
+        int runs = 3;
+        long cacheSize = 100 * MEGABYTE;
+        boolean lazy = false;
+        boolean cold = false;
+        boolean verbose = false;
+    }
+
+    private final FakePixivServer server;
+    private final Options options;
+    private final JvmPlatform platform;
+    // shared by the runs, as the worker shares one per process
+    private final HostCircuitBreaker hostBreaker = new HostCircuitBreaker();
+
+    private LoadTest(FakePixivServer server, Options options) throws IOException {
+        this.server = server;
+        this.options = options;
+        this.platform = new JvmPlatform(options.verbose);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final FakePixivServer.Config config = new FakePixivServer.Config();
+        final Options options = new Options();
+        for (String arg : args) {
+            final String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            final String value = pair.length > 1 ? pair[1] : "";
+            switch (pair[0]) {
+                case "mode":
+                    options.mode = value;
+                    break;
+                case "variant":
+                    options.imageVariant = value;
+                    break;
+                case "weights":
+                    options.mixedWeights = value;
+                    break;
+                case "lazy":
+                    options.lazy = true;
+                    break;
+                case "cold":
+                    options.cold = true;
+                    break;
+                case "verbose":
+                    options.verbose = true;
+                    break;
+                case "cache-mb":
+                    options.cacheSize = Long.parseLong(value) * MEGABYTE;
+                    break;
+                case "latency-ms":
+                    config.latencyMillis = Long.parseLong(value);
+                    break;
+                case "bandwidth-kbps":
+                    config.bandwidthKbps = Long.parseLong(value);
+                    break;
+                case "failure-rate":
+                    config.failureRate = Double.parseDouble(value);
+                    break;
+                case "min-image-kb":
+                    config.minImageKb = Integer.parseInt(value);
+                    break;
+                case "max-image-kb":
+                    config.maxImageKb = Integer.parseInt(value);
+                    break;
+                case "seed":
+                    config.seed = Long.parseLong(value);
+                    break;
+                case "concurrency":
+                    options.concurrency = Integer.parseInt(value);
+                    break;
+                case "per-host":
+                    options.maxRequestsPerHost = Integer.parseInt(value);
+                    break;
+                case "pool-size":
+                    options.poolSize = Integer.parseInt(value);
+                    break;
+                case "runs":
+                    options.runs = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        final FakePixivServer server = new FakePixivServer(config);
+        server.start();
+        final LoadTest test = new LoadTest(server, options);
+        try {
+            for (int i = 1; i <= options.runs; i++) {
+                if (options.cold) {
+                    test.platform.clear();
+                }
+                test.run(i);
+            }
+        } finally {
+            test.platform.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private void run(int number) throws Exception {
+        // a fresh client per run, so every run pays for its own connections
+        final OkHttpClient client = PixivHttpClient.newBuilder()
+                .addInterceptor(new HostRewriter(server.url()))
+                .build();
+        client.dispatcher().setMaxRequestsPerHost(options.maxRequestsPerHost);
+        PixivHttpClient.getStats().reset();
+        server.resetCounters();
+        System.gc();
+        resetPeakHeap();
+
+        final long begin = System.nanoTime();
+        final RunMetrics metrics = RunMetrics.start(platform, options.mode);
+        final ImageMetadataStore metadataStore = new ImageMetadataStore(platform);
+        final ArtworkDiskCache diskCache = new ArtworkDiskCache(platform, metadataStore);
+        final ImageFetcher fetcher = new ImageFetcher(platform, client, metadataStore, diskCache,
+                metrics, options.imageVariant);
+        final SyncCheckpoint checkpoint = SyncCheckpoint.load(platform, options.mode, System.currentTimeMillis());
+        final ArtworkRefresh refresh = new ArtworkRefresh(platform,
+                new FeedClient(platform, client, metrics).setLogin("user0", "password"),
+                fetcher, checkpoint, new IllustFilter(), hostBreaker, metrics,
+                options.imageVariant, options.concurrency, options.maxRequestsPerHost)
+                .setPoolSize(options.poolSize)
+                .setLazy(options.lazy)
+                .setMixedWeights(options.mixedWeights);
+        try {
+            final List<Illust> contents;
+            try {
+                contents = refresh.fetch(options.mode);
+            } catch (IOException e) {
+                refresh.cancel();
+                checkpoint.save();
+                System.out.println("run " + number + ": feed failed: " + e);
+                return;
+            }
+            final List<ArtworkRefresh.Prepared> results = refresh.await();
+
+            // what PixivArtWorker does once the artworks are published
+            final Set<String> pinned = new HashSet<>();
+            for (ArtworkRefresh.Prepared result : results) {
+                if (!ArtworkSource.isRemote(result.persistentUri)) {
+                    pinned.add(ImageFetcher.toFile(result.persistentUri).getName());
+                }
+            }
+            diskCache.setPinned(pinned);
+            diskCache.trim(options.cacheSize);
+            final Set<Integer> feedIds = new HashSet<>();
+            for (Illust content : contents) {
+                feedIds.add(content.id);
+            }
+            new OriginalUrlCache(platform).prune(feedIds, metadataStore);
+            final boolean outstanding = checkpoint.hasOutstanding();
+            if (outstanding) {
+                checkpoint.save();
+            } else {
+                checkpoint.clear();
+            }
+            metrics.finish(outstanding ? "retry" : "success");
+            final long elapsed = (System.nanoTime() - begin) / 1000000;
+
+            System.out.println(String.format(Locale.US,
+                    "run %d (%s, %s): %d/%d artworks in %d ms (downloads %d ms)%s",
+                    number, options.mode, options.imageVariant, results.size(), contents.size(),
+                    elapsed, refresh.getWallTimeMillis(), outstanding ? ", downloads outstanding" : ""));
+            System.out.println(String.format(Locale.US,
+                    "  requests: %d (feed %d, oauth %d, probe %d, image %d, not modified %d,"
+                            + " resumed %d, failed %d)",
+                    server.requests.get(), server.feedRequests.get(),
+                    server.oauthRequests.get(), server.probeRequests.get(),
+                    server.imageRequests.get(), server.notModifiedRequests.get(),
+                    server.resumedRequests.get(), server.failedRequests.get()));
+            System.out.println(String.format(Locale.US,
+                    "  bytes: served %.1f MB, received %.1f MB, cached %.1f MB",
+                    (double) server.bytesServed.get() / MEGABYTE,
+                    (double) fetcher.getReceivedBytes() / MEGABYTE,
+                    (double) getSize(new File(platform.getCacheDir(), "artworks")) / MEGABYTE));
+            System.out.println(String.format(Locale.US,
+                    "  peak heap: %.1f MB", (double) getPeakHeap() / MEGABYTE));
+            final JsonArray summaries = RunMetrics.query(platform, 1);
+            if (summaries.size() > 0) {
+                System.out.println("  metrics: " + summaries.get(0).asObject().get("stages")
+                        + " " + summaries.get(0).asObject().get("counters"));
+            }
+            System.out.println(PixivHttpClient.getStats());
+        } finally {
+            client.connectionPool().evictAll();
+            client.dispatcher().executorService().shutdown();
+        }
+    }
+
+    private static long getSize(File directory) {
+        long size = 0;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // The sum of the peaks of every heap pool, an upper bound of the peak
+    // heap usage since the pools don't peak at the same moment.
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,151 @@
+package com.pixiv.muzei.pixivsource;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Point;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.WindowManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+// The app's Platform: SharedPreferences, the context's directories and logcat.
+public class AndroidPlatform implements Platform {
+    private final Context context;
+
+    public AndroidPlatform(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public KeyValueStore getStore(String name) {
+        return new PreferencesStore(context.getSharedPreferences(name, Context.MODE_PRIVATE));
+    }
+
+    @Override
+    public File getCacheDir() {
+        return context.getCacheDir();
+    }
+
+    @Override
+    public File getFilesDir() {
+        return context.getFilesDir();
+    }
+
+    @Override
+    public void log(String tag, String message) {
+        Log.d(tag, message);
+    }
+
+    @Override
+    public void warn(String tag, String message) {
+        Log.w(tag, message);
+    }
+
+    // An ImageFetcher on the shared HTTP client which follows pref_imageQuality.
+    public ImageFetcher newImageFetcher(ImageMetadataStore metadataStore, ArtworkDiskCache diskCache,
+                                        RunMetrics metrics, String imageVariant) {
+        final ImageFetcher fetcher = new ImageFetcher(this, PixivHttpClient.getInstance(),
+                metadataStore, diskCache, metrics, imageVariant);
+        if (isScreenQuality()) {
+            final Point screen = getScreenSize();
+            fetcher.setScreenSize(screen.x, screen.y, new ImageFetcher.Scaler() {
+                @Override
+                public boolean downsample(File file, int width, int height) throws IOException {
+                    return ImageScaler.downsample(file, width, height);
+                }
+            });
+        }
+        return fetcher;
+    }
+
+    private boolean isScreenQuality() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final String quality = preferences.getString(
+                "pref_imageQuality",
+                context.getString(R.string.pref_imageQuality_default)
+        );
+        return quality.equals("screen");
+    }
+
+    // Screen size in portrait orientation, which is what Muzei crops to.
+    private Point getScreenSize() {
+        final WindowManager windowManager =
+                (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        final Point size = new Point();
+        windowManager.getDefaultDisplay().getRealSize(size);
+        return new Point(Math.min(size.x, size.y), Math.max(size.x, size.y));
+    }
+
+    private static class PreferencesStore implements KeyValueStore {
+        private final SharedPreferences preferences;
+
+        PreferencesStore(SharedPreferences preferences) {
+            this.preferences = preferences;
+        }
+
+        @Override
+        public String getString(String key, String defaultValue) {
+            return preferences.getString(key, defaultValue);
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+            return preferences.getLong(key, defaultValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defaultValue) {
+            return preferences.getFloat(key, defaultValue);
+        }
+
+        @Override
+        public Set<String> getKeys() {
+            return new HashSet<>(preferences.getAll().keySet());
+        }
+
+        @Override
+        public Editor edit() {
+            final SharedPreferences.Editor editor = preferences.edit();
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    editor.putString(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    editor.putLong(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    editor.putFloat(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    editor.remove(key);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    editor.clear();
+                    return this;
+                }
+
+                @Override
+                public void apply() {
+                    editor.apply();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+// Size-bounded cache directory for downloaded artwork files.  Files are
+// evicted least recently used first, except for the ones pinned because
+// PixivArtProvider still exposes them to Muzei.
+public class ArtworkDiskCache {
+    private static final String LOG_TAG = "muzei.ArtworkDiskCache";
+    private static final String DIRECTORY_NAME = "artworks";
+    private static final String PREFERENCES_NAME = "artwork_cache";
+
+    // files written by older versions directly under the cache directory
+    private static final Pattern LEGACY_FILE_PATTERN = Pattern.compile("^[0-9]+\\.[0-9]+$");
+
+    private final Platform platform;
+    private final File directory;
+    private final ImageMetadataStore metadataStore;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private Set<String> pinned = Collections.emptySet();
+
+    public ArtworkDiskCache(Platform platform, ImageMetadataStore metadataStore) {
+        this.platform = platform;
+        this.directory = new File(platform.getCacheDir(), DIRECTORY_NAME);
+        this.metadataStore = metadataStore;
+    }
+
+    public File getFile(String key) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create cache directory: " + directory);
+        }
+        return new File(directory, key);
+    }
+
+    // Marks the file as recently used.
+    public void touch(File file) {
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            platform.log(LOG_TAG, "couldn't touch " + file.getAbsolutePath());
+        }
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    // Names of the files that must survive trim().
+    public synchronized void setPinned(Set<String> names) {
+        this.pinned = new HashSet<>(names);
+    }
+
+    // Evicts unpinned files, oldest first, until the cache fits in maxSize bytes.
+    public synchronized void trim(long maxSize) {
+        removeLegacyFiles();
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        int evicted = 0;
+        for (File file : files) {
+            if (size <= maxSize) {
+                break;
+            }
+            if (pinned.contains(file.getName())) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                metadataStore.remove(file.getName());
+                size -= length;
+                evicted++;
+            }
+        }
+        platform.log(LOG_TAG, "cache size: " + size + "/" + maxSize + " bytes, evicted " + evicted
+                + " files, hits: " + hits.get() + ", misses: " + misses.get());
+        saveStats();
+    }
+
+    public long getHitCount() {
+        return getStatsStore().getLong("hits", 0) + hits.get();
+    }
+
+    public long getMissCount() {
+        return getStatsStore().getLong("misses", 0) + misses.get();
+    }
+
+    private synchronized void saveStats() {
+        final KeyValueStore preferences = getStatsStore();
+        preferences.edit()
+                .putLong("hits", preferences.getLong("hits", 0) + hits.getAndSet(0))
+                .putLong("misses", preferences.getLong("misses", 0) + misses.getAndSet(0))
+                .apply();
+    }
+
+    private KeyValueStore getStatsStore() {
+        return platform.getStore(PREFERENCES_NAME);
+    }
+
+    private void removeLegacyFiles() {
+        File[] files = platform.getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && LEGACY_FILE_PATTERN.matcher(file.getName()).matches()) {
+                if (file.delete()) {
+                    metadataStore.remove(file.getName());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+
+// The feed-and-download part of a refresh: takes the illusts of the update
+// mode, or of a resumed SyncCheckpoint, and downloads their images while the
+// next feed page loads.  PixivArtWorker publishes what it prepares; the load
+// test runs it against a fake server.
+public class ArtworkRefresh {
+    private static final String LOG_TAG = "muzei.ArtworkRefresh";
+    private static final String SEEN_HISTORY_FILE_NAME = "seen_history.bin";
+
+    // An illust ready to be published: its file, or the remote image in lazy mode.
+    public static class Prepared {
+        public final ArtworkSource source;
+        public final String persistentUri;
+
+        Prepared(ArtworkSource source, String persistentUri) {
+            this.source = source;
+            this.persistentUri = persistentUri;
+        }
+    }
+
+    private final Platform platform;
+    private final FeedClient feedClient;
+    private final ImageFetcher fetcher;
+    private final SyncCheckpoint checkpoint;
+    private final IllustFilter filter;
+    private final HostCircuitBreaker hostBreaker;
+    private final RunMetrics metrics;
+    private final String imageVariant;
+    private final DownloadPipeline<Prepared> pipeline;
+    private final SeenHistory seenHistory;
+    private int poolSize = 60;
+    private boolean lazy = false;
+    private Map<String, Integer> mixedWeights = new LinkedHashMap<>();
+    // recently downloaded illusts published from the cache this run
+    private final AtomicInteger seenReused = new AtomicInteger();
+    // artworks published without waiting for the pipeline
+    private final List<Prepared> prepared = new ArrayList<>();
+    // illust id to its position in the feed, which await() returns them in
+    private final Map<Integer, Integer> positions = new HashMap<>();
+
+    public ArtworkRefresh(Platform platform, FeedClient feedClient, ImageFetcher fetcher,
+                          SyncCheckpoint checkpoint, IllustFilter filter,
+                          HostCircuitBreaker hostBreaker, RunMetrics metrics,
+                          String imageVariant, int downloadConcurrency, int maxRequestsPerHost) {
+        this.platform = platform;
+        this.feedClient = feedClient;
+        this.fetcher = fetcher;
+        this.checkpoint = checkpoint;
+        this.filter = filter;
+        this.hostBreaker = hostBreaker;
+        this.metrics = metrics;
+        this.imageVariant = imageVariant;
+        this.pipeline = new DownloadPipeline<>(downloadConcurrency, maxRequestsPerHost);
+        this.pipeline.setFailureListener(new DownloadPipeline.FailureListener() {
+            @Override
+            public void onFailure(IOException e) {
+                ArtworkRefresh.this.platform.log(LOG_TAG, e.toString());
+            }
+        });
+        this.seenHistory = SeenHistory.load(
+                new File(platform.getFilesDir(), SEEN_HISTORY_FILE_NAME), System.currentTimeMillis());
+    }
+
+    public ArtworkRefresh setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    // Publish remote URLs and let the provider download each image when Muzei
+    // opens the artwork, see pref_lazyDownload.
+    public ArtworkRefresh setLazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    // Sources of the mixed mode, e.g. "daily_rank:2,weekly_rank:1,follow:1".
+    public ArtworkRefresh setMixedWeights(String value) {
+        final Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String item : value.split(",")) {
+            final String[] pair = item.trim().split(":");
+            if (pair.length == 0 || pair[0].isEmpty() || pair[0].equals("mixed")) {
+                continue;
+            }
+            int weight = 1;
+            if (pair.length > 1) {
+                try {
+                    weight = Integer.parseInt(pair[1].trim(), 10);
+                } catch (NumberFormatException e) {
+                    platform.warn(LOG_TAG, "invalid weight: " + item);
+                }
+            }
+            if (weight > 0) {
+                weights.put(pair[0].trim(), weight);
+            }
+        }
+        this.mixedWeights = weights;
+        return this;
+    }
+
+    // Takes the illusts and submits their downloads; an empty list if the
+    // feed had nothing left after filtering.  Throws if no feed could be read.
+    public List<Illust> fetch(String updateMode) throws IOException, InterruptedException {
+        final List<Illust> contents;
+        if (checkpoint.isResumed()) {
+            contents = resumeCheckpoint();
+        } else if (updateMode.equals("mixed")) {
+            contents = fetchMixedFeed();
+        } else {
+            contents = fetchFeed(feedClient.getUpdateUriInfo(updateMode));
+        }
+        for (int i = 0; i < contents.size(); i++) {
+            if (!positions.containsKey(contents.get(i).id)) {
+                positions.put(contents.get(i).id, i);
+            }
+        }
+        platform.log(LOG_TAG, "The number of Contents: " + contents.size());
+        reportFilter();
+        return contents;
+    }
+
+    public void cancel() {
+        pipeline.cancel();
+    }
+
+    // Waits for the downloads and returns everything that can be published,
+    // in feed order whether it was downloaded, reused or restored.
+    public List<Prepared> await() throws InterruptedException {
+        final List<Prepared> results = pipeline.await();
+        checkpoint.saveIfChanged();
+        platform.log(LOG_TAG, "Downloaded " + results.size() + " contents in "
+                + pipeline.getWallTimeMillis() + "ms (sequential: "
+                + pipeline.getSequentialTimeMillis() + "ms)");
+        platform.log(LOG_TAG, "Published from the cache as recently downloaded: " + seenReused.get()
+                + " of " + seenHistory.size() + " in history");
+        metrics.count("seen_reused", seenReused.get());
+        try {
+            seenHistory.save(System.currentTimeMillis());
+        } catch (IOException e) {
+            platform.warn(LOG_TAG, "couldn't save seen history: " + e);
+        }
+
+        final List<Prepared> artworks = new ArrayList<>(prepared);
+        for (Prepared artwork : results) {
+            if (artwork != null) {
+                artworks.add(artwork);
+            }
+        }
+        // the seen illusts are submitted after the new ones
+        Collections.sort(artworks, new Comparator<Prepared>() {
+            @Override
+            public int compare(Prepared a, Prepared b) {
+                return Integer.compare(getPosition(a), getPosition(b));
+            }
+        });
+        return artworks;
+    }
+
+    public long getWallTimeMillis() {
+        return pipeline.getWallTimeMillis();
+    }
+
+    // Publishes the finished illusts of the saved checkpoint again and
+    // downloads the others, unless they failed too often.
+    private List<Illust> resumeCheckpoint() {
+        final List<Illust> contents = new ArrayList<>();
+        int restored = 0;
+        int exhausted = 0;
+        for (SyncCheckpoint.Item item : checkpoint.getItems()) {
+            contents.add(item.illust);
+            if (item.isDone()) {
+                if (ImageFetcher.toFile(item.fileUri).exists()) {
+                    prepared.add(buildPrepared(item.illust, item.referer, item.fileUri));
+                    restored++;
+                    continue;
+                }
+                // evicted in the meantime
+                checkpoint.markLost(item.illust.id);
+            } else if (item.isExhausted()) {
+                exhausted++;
+                continue;
+            }
+            submitDownload(item.illust, item.referer);
+        }
+        checkpoint.saveIfChanged();
+        platform.log(LOG_TAG, "resume checkpoint: " + restored + " finished, "
+                + exhausted + " given up, " + (contents.size() - restored - exhausted)
+                + " outstanding");
+        return contents;
+    }
+
+    // Downloads start as soon as each page is parsed, while the next page is
+    // being fetched.
+    private List<Illust> fetchFeed(JsonObject updateUriInfo)
+            throws IOException, InterruptedException {
+        final String referer = updateUriInfo.getString("url", "");
+        final List<Illust> contents = new ArrayList<>();
+        final Set<Integer> ids = new HashSet<>();
+        final List<Illust> seen = new ArrayList<>();
+        final FeedPager pager = feedClient.createFeedPager(updateUriInfo, poolSize);
+        try {
+            FeedPage page;
+            while ((page = pager.next()) != null) {
+                for (final Illust content : page.illusts) {
+                    if (!content.isValid() || !ids.add(content.id)
+                            || !filter.accept(content, imageVariant)) {
+                        continue;
+                    }
+                    contents.add(content);
+                    if (isRecentlySeen(content)) {
+                        seen.add(content);
+                    } else {
+                        submitDownload(content, referer);
+                    }
+                }
+                checkpoint.saveIfChanged();
+            }
+            feedClient.saveFeedCursor(updateUriInfo, pager);
+        } catch (IOException e) {
+            if (contents.isEmpty()) {
+                throw e;
+            }
+            // keep what the earlier pages gave us
+            platform.warn(LOG_TAG, e.toString());
+        } finally {
+            pager.close();
+        }
+        // new illusts first; the seen ones are mostly still in the cache
+        for (Illust content : seen) {
+            submitDownload(content, referer);
+        }
+        checkpoint.saveIfChanged();
+        return contents;
+    }
+
+    // Fetches every source of the mixed mode at once, then interleaves them
+    // by weight so each illust is downloaded only once.
+    private List<Illust> fetchMixedFeed() throws IOException, InterruptedException {
+        final List<JsonObject> sources = new ArrayList<>();
+        final List<Integer> weightList = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : mixedWeights.entrySet()) {
+            final JsonObject updateUriInfo = feedClient.getUpdateUriInfo(entry.getKey());
+            if (FeedClient.isAuthRequired(entry.getKey())
+                    && !updateUriInfo.getBoolean("use_auth_api", false)) {
+                platform.log(LOG_TAG, "skip " + entry.getKey() + " without authorization");
+                continue;
+            }
+            sources.add(updateUriInfo);
+            weightList.add(entry.getValue());
+        }
+        if (sources.isEmpty()) {
+            sources.add(feedClient.getUpdateUriInfo("daily_rank"));
+            weightList.add(1);
+        }
+
+        final int[] weights = new int[sources.size()];
+        int totalWeight = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = weightList.get(i);
+            totalWeight += weights[i];
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(sources.size());
+        final List<Future<List<Illust>>> futures = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            final JsonObject updateUriInfo = sources.get(i);
+            final int maxItems = (poolSize * weights[i] + totalWeight - 1) / totalWeight;
+            futures.add(executor.submit(new Callable<List<Illust>>() {
+                @Override
+                public List<Illust> call() throws Exception {
+                    return collectFeed(updateUriInfo, maxItems);
+                }
+            }));
+        }
+
+        final List<List<Illust>> feeds = new ArrayList<>();
+        final Map<Integer, String> referers = new HashMap<>();
+        IOException lastError = null;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                List<Illust> feed;
+                try {
+                    feed = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof IOException)) {
+                        throw new RuntimeException(e.getCause());
+                    }
+                    lastError = (IOException) e.getCause();
+                    platform.warn(LOG_TAG, lastError.toString());
+                    feed = new ArrayList<>();
+                }
+                final String referer = sources.get(i).getString("url", "");
+                for (Illust content : feed) {
+                    if (!referers.containsKey(content.id)) {
+                        referers.put(content.id, referer);
+                    }
+                }
+                feeds.add(feed);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final List<Illust> contents = FeedMixer.mix(feeds, weights, poolSize);
+        if (contents.isEmpty() && lastError != null) {
+            throw lastError;
+        }
+        final List<Illust> seen = new ArrayList<>();
+        for (Illust content : contents) {
+            if (isRecentlySeen(content)) {
+                seen.add(content);
+            } else {
+                submitDownload(content, referers.get(content.id));
+            }
+        }
+        for (Illust content : seen) {
+            submitDownload(content, referers.get(content.id));
+        }
+        checkpoint.saveIfChanged();
+        return contents;
+    }
+
+    private List<Illust> collectFeed(JsonObject updateUriInfo, int maxItems)
+            throws IOException, InterruptedException {
+        final List<Illust> contents = new ArrayList<>();
+        final FeedPager pager = feedClient.createFeedPager(updateUriInfo, maxItems);
+        try {
+            FeedPage page;
+            while ((page = pager.next()) != null) {
+                for (Illust content : page.illusts) {
+                    if (content.isValid() && filter.accept(content, imageVariant)) {
+                        contents.add(content);
+                    }
+                }
+            }
+            feedClient.saveFeedCursor(updateUriInfo, pager);
+        } catch (IOException e) {
+            if (contents.isEmpty()) {
+                throw e;
+            }
+            platform.warn(LOG_TAG, e.toString());
+        } finally {
+            pager.close();
+        }
+        return contents;
+    }
+
+    private void reportFilter() {
+        platform.log(LOG_TAG, "Filter: " + filter);
+        for (Map.Entry<String, Integer> entry : filter.getRejectedCounts().entrySet()) {
+            metrics.count("filter_rejected_" + entry.getKey(), entry.getValue());
+        }
+        metrics.count("filter_bytes_avoided", filter.getBytesAvoided());
+    }
+
+    private void submitDownload(final Illust content, final String referer) {
+        if (lazy) {
+            // the provider downloads the image when Muzei opens the artwork,
+            // so there is nothing to resume
+            prepared.add(buildPrepared(content, referer, fetcher.getImageUrl(content)));
+            return;
+        }
+        if (publishSeen(content, referer)) {
+            return;
+        }
+        checkpoint.add(content, referer);
+        final String host = getImageHost(content);
+        pipeline.submit(host, new DownloadPipeline.Task<Prepared>() {
+            @Override
+            public Prepared run() throws IOException {
+                // a backed off host defers the illust without using up an attempt
+                final boolean trial = hostBreaker.acquire(host);
+                final String fileUri;
+                try {
+                    fileUri = fetcher.download(content, referer);
+                    hostBreaker.recordSuccess(host);
+                } catch (IOException e) {
+                    // a deleted illust or a local error says nothing about the host
+                    if (ImageFetcher.isHostFailure(e)) {
+                        hostBreaker.recordFailure(host);
+                    }
+                    checkpoint.markFailed(content.id);
+                    throw e;
+                } finally {
+                    if (trial) {
+                        hostBreaker.releaseTrial(host);
+                    }
+                }
+                seenHistory.put(content.id, System.currentTimeMillis());
+                checkpoint.markDone(content.id, fileUri);
+                return buildPrepared(content, referer, fileUri);
+            }
+        });
+    }
+
+    private boolean isRecentlySeen(Illust content) {
+        return seenHistory.contains(content.id, System.currentTimeMillis());
+    }
+
+    // An illust downloaded within SeenHistory.MAX_AGE_MILLIS is published from
+    // its cached file without asking the server whether it changed.
+    private boolean publishSeen(Illust content, String referer) {
+        if (!isRecentlySeen(content)) {
+            return false;
+        }
+        final String cached;
+        try {
+            cached = fetcher.getCached(content);
+        } catch (IOException e) {
+            return false;
+        }
+        if (cached == null) {
+            return false;
+        }
+        checkpoint.addDone(content, referer, cached);
+        prepared.add(buildPrepared(content, referer, cached));
+        seenReused.incrementAndGet();
+        return true;
+    }
+
+    private int getPosition(Prepared artwork) {
+        final Integer position = positions.get(artwork.source.illust.id);
+        return position != null ? position : Integer.MAX_VALUE;
+    }
+
+    private Prepared buildPrepared(Illust content, String referer, String persistentUri) {
+        return new Prepared(new ArtworkSource(content, referer, imageVariant), persistentUri);
+    }
+
+    private static String getImageHost(Illust content) {
+        String url = content.url;
+        if (url == null) {
+            url = content.originalUrl != null ? content.originalUrl : content.largeUrl;
+        }
+        final HttpUrl parsed = url == null ? null : HttpUrl.parse(url);
+        return parsed != null ? parsed.host() : null;
+    }
+}
@@ -0,0 +1,61 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.ParseException;
+
+// Where the image of a published artwork comes from, kept in the artwork's
+// metadata column.  The provider downloads artworks published with a remote
+// URL from it, and the upgrade worker replaces smaller variants with the
+// original.
+public class ArtworkSource {
+    public final Illust illust;
+    public final String referer;
+    public final String imageVariant;
+
+    public ArtworkSource(Illust illust, String referer, String imageVariant) {
+        this.illust = illust;
+        this.referer = referer;
+        this.imageVariant = imageVariant;
+    }
+
+    public ArtworkSource withVariant(String imageVariant) {
+        return new ArtworkSource(illust, referer, imageVariant);
+    }
+
+    public String toMetadata() {
+        final JsonObject obj = new JsonObject()
+                .add("illust", illust.toJson())
+                .add("variant", imageVariant);
+        if (referer != null) {
+            obj.add("referer", referer);
+        }
+        return obj.toString();
+    }
+
+    // null for artworks published by older versions
+    public static ArtworkSource fromMetadata(String metadata) {
+        if (metadata == null || metadata.isEmpty()) {
+            return null;
+        }
+        try {
+            final JsonObject obj = Json.parse(metadata).asObject();
+            if (obj.get("illust") == null) {
+                return null;
+            }
+            return new ArtworkSource(
+                    Illust.fromJson(obj.get("illust").asObject()),
+                    obj.getString("referer", null),
+                    obj.getString("variant", FetchPolicy.ORIGINAL)
+            );
+        } catch (ParseException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    // Whether the artwork was published without a file, see pref_lazyDownload.
+    public static boolean isRemote(String persistentUri) {
+        return persistentUri != null
+                && (persistentUri.startsWith("https://") || persistentUri.startsWith("http://"));
+    }
+}
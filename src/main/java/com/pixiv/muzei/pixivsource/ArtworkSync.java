@@ -0,0 +1,154 @@
+package com.pixiv.muzei.pixivsource;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.BaseColumns;
+
+import com.google.android.apps.muzei.api.provider.Artwork;
+import com.google.android.apps.muzei.api.provider.ProviderClient;
+import com.google.android.apps.muzei.api.provider.ProviderContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Brings the provider's rows in line with a freshly fetched artwork list by
+// inserting, updating and deleting only what changed, keyed by token.  A row
+// is only deleted once its illust is gone from the feed, not because its
+// download failed this run.
+public class ArtworkSync {
+    private static final int BATCH_SIZE = 50;
+
+    public static class Stats {
+        public int inserted;
+        public int updated;
+        public int deleted;
+        public int unchanged;
+        public int kept;
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "inserted=%d updated=%d deleted=%d unchanged=%d kept=%d",
+                    inserted, updated, deleted, unchanged, kept
+            );
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final Uri contentUri;
+
+    public ArtworkSync(Context context, ProviderClient client) {
+        this.resolver = context.getContentResolver();
+        this.contentUri = client.getContentUri();
+    }
+
+    public Map<String, Artwork> loadPublished() {
+        final Map<String, Artwork> published = new HashMap<>();
+        final Cursor cursor = resolver.query(contentUri, null, null, null, null);
+        if (cursor == null) {
+            return published;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                Artwork artwork = Artwork.fromCursor(cursor);
+                if (artwork.getToken() != null) {
+                    published.put(artwork.getToken(), artwork);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return published;
+    }
+
+    // feedTokens are the tokens of every illust of the feed, including those
+    // without an artwork this run.
+    public Stats sync(List<Artwork> artworks, Set<String> feedTokens)
+            throws RemoteException, OperationApplicationException {
+        final Stats stats = new Stats();
+        final Map<String, Artwork> published = loadPublished();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+        for (Artwork artwork : artworks) {
+            final Artwork existing = published.remove(artwork.getToken());
+            if (existing == null) {
+                operations.add(ContentProviderOperation.newInsert(contentUri)
+                        .withValues(artwork.toContentValues())
+                        .build());
+                stats.inserted++;
+            } else if (isChanged(existing, artwork)) {
+                operations.add(ContentProviderOperation.newUpdate(contentUri)
+                        .withSelection(BaseColumns._ID + " = ?",
+                                new String[]{String.valueOf(existing.getId())})
+                        .withValue(ProviderContract.Artwork.TITLE, artwork.getTitle())
+                        .withValue(ProviderContract.Artwork.BYLINE, artwork.getByline())
+                        .withValue(ProviderContract.Artwork.WEB_URI, toString(artwork.getWebUri()))
+                        .withValue(ProviderContract.Artwork.PERSISTENT_URI,
+                                toString(artwork.getPersistentUri()))
+                        .withValue(ProviderContract.Artwork.METADATA, artwork.getMetadata())
+                        .build());
+                stats.updated++;
+            } else {
+                stats.unchanged++;
+            }
+            applyIfFull(operations);
+        }
+
+        for (Artwork artwork : published.values()) {
+            // still in the feed but not downloaded this run, e.g. while the
+            // image host is backed off; the old row keeps showing it
+            if (feedTokens.contains(artwork.getToken())) {
+                stats.kept++;
+                continue;
+            }
+            operations.add(ContentProviderOperation.newDelete(contentUri)
+                    .withSelection(BaseColumns._ID + " = ?",
+                            new String[]{String.valueOf(artwork.getId())})
+                    .build());
+            stats.deleted++;
+            applyIfFull(operations);
+        }
+        apply(operations);
+        return stats;
+    }
+
+    private void applyIfFull(ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        if (operations.size() >= BATCH_SIZE) {
+            apply(operations);
+        }
+    }
+
+    private void apply(ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        if (operations.isEmpty()) {
+            return;
+        }
+        resolver.applyBatch(contentUri.getAuthority(), operations);
+        operations.clear();
+    }
+
+    private static boolean isChanged(Artwork a, Artwork b) {
+        return !equals(a.getTitle(), b.getTitle())
+                || !equals(a.getByline(), b.getByline())
+                || !equals(toString(a.getWebUri()), toString(b.getWebUri()))
+                || !equals(toString(a.getPersistentUri()), toString(b.getPersistentUri()))
+                || !equals(a.getMetadata(), b.getMetadata());
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String toString(Uri uri) {
+        return uri == null ? null : uri.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package com.pixiv.muzei.pixivsource;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.android.apps.muzei.api.provider.Artwork;
+import com.google.android.apps.muzei.api.provider.ProviderClient;
+import com.google.android.apps.muzei.api.provider.ProviderContract;
+
+import java.io.IOException;
+
+// Second phase of a refresh that published smaller variants: downloads the
+// originals and points each artwork at its original once the file decodes.
+public class ArtworkUpgradeWorker extends Worker {
+    private static final String LOG_TAG = "muzei.ArtworkUpgradeWorker";
+    private static final String UNIQUE_NAME = "pixiv_upgrade";
+    // a queued upgrade is left to the next refresh after this many runs
+    private static final int MAX_RUN_ATTEMPTS = 5;
+
+    public ArtworkUpgradeWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    // Runs on an unmetered network while the battery isn't low.  A queued
+    // upgrade already covers every artwork published until it runs.
+    public static void enqueue() {
+        final Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(ArtworkUpgradeWorker.class)
+                .setConstraints(constraints)
+                .build();
+        WorkManager.getInstance().enqueueUniqueWork(UNIQUE_NAME, ExistingWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        final Context context = getApplicationContext();
+        final ProviderClient client = ProviderContract.getProviderClient(context, PixivArtProvider.class);
+        final AndroidPlatform platform = new AndroidPlatform(context);
+        final ImageMetadataStore metadataStore = new ImageMetadataStore(platform);
+        final ImageFetcher fetcher = platform.newImageFetcher(metadataStore,
+                new ArtworkDiskCache(platform, metadataStore), RunMetrics.disabled(), FetchPolicy.ORIGINAL);
+        int upgraded = 0;
+        int failed = 0;
+        int missing = 0;
+        for (Artwork artwork : new ArtworkSync(context, client).loadPublished().values()) {
+            if (isStopped()) {
+                return Result.retry();
+            }
+            final String persistentUri = artwork.getPersistentUri() == null
+                    ? null : artwork.getPersistentUri().toString();
+            final ArtworkSource source = ArtworkSource.fromMetadata(artwork.getMetadata());
+            if (source == null || persistentUri == null || ArtworkSource.isRemote(persistentUri)
+                    || source.imageVariant.equals(FetchPolicy.ORIGINAL)) {
+                continue;
+            }
+            try {
+                final String original = fetcher.fetch(source.illust, source.referer);
+                if (original.equals(persistentUri)) {
+                    continue;
+                }
+                if (!isDecodable(original)) {
+                    throw new ImageFetcher.LocalException("Not an image: " + original);
+                }
+                // a running refresh publishes its own list over the rows
+                if (!PixivArtWorker.refreshLock.tryLock()) {
+                    Log.d(LOG_TAG, "a refresh is running, upgrade later");
+                    return retryOrGiveUp();
+                }
+                try {
+                    if (update(client, artwork, original, source)) {
+                        upgraded++;
+                    }
+                } finally {
+                    PixivArtWorker.refreshLock.unlock();
+                }
+            } catch (IOException e) {
+                Log.d(LOG_TAG, e.toString());
+                if (ImageFetcher.isPermanent(e)) {
+                    // e.g. deleted since it was published; retrying won't help
+                    missing++;
+                } else {
+                    failed++;
+                }
+            }
+        }
+        Log.d(LOG_TAG, "upgraded " + upgraded + " artworks, " + failed + " failed, "
+                + missing + " no longer available");
+        return failed > 0 ? retryOrGiveUp() : Result.success();
+    }
+
+    private Result retryOrGiveUp() {
+        if (getRunAttemptCount() + 1 < MAX_RUN_ATTEMPTS) {
+            return Result.retry();
+        }
+        Log.d(LOG_TAG, "give up after " + MAX_RUN_ATTEMPTS + " runs");
+        return Result.success();
+    }
+
+    // Muzei fetches the image again once the persistent URI changed.  A row
+    // that changed since it was loaded is left alone.
+    private boolean update(ProviderClient client, Artwork artwork, String original, ArtworkSource source) {
+        final ContentValues values = new ContentValues();
+        values.put(ProviderContract.Artwork.PERSISTENT_URI, original);
+        values.put(ProviderContract.Artwork.METADATA,
+                source.withVariant(FetchPolicy.ORIGINAL).toMetadata());
+        final ContentResolver resolver = getApplicationContext().getContentResolver();
+        return resolver.update(client.getContentUri(), values,
+                BaseColumns._ID + " = ? AND " + ProviderContract.Artwork.PERSISTENT_URI + " = ?",
+                new String[]{String.valueOf(artwork.getId()), artwork.getPersistentUri().toString()}) > 0;
+    }
+
+    private static boolean isDecodable(String fileUri) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(ImageFetcher.toFile(fileUri).getAbsolutePath(), options);
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+}
@@ -0,0 +1,63 @@
+package com.pixiv.muzei.pixivsource;
+
+// Keeps the OAuth tokens between worker runs so that a valid access token
+// can be reused and an expired one refreshed without sending the password.
+public class CredentialStore {
+    private static final String PREFERENCES_NAME = "pixiv_credentials";
+
+    // refresh this long before the access token actually expires
+    private static final long EXPIRY_MARGIN_MILLIS = 5 * 60 * 1000;
+
+    public static class Credentials {
+        public String loginId;
+        public String accessToken;
+        public String refreshToken;
+        public String userId;
+        public long expiresAt;
+
+        public boolean isUsable(String loginId, long now) {
+            return accessToken != null && userId != null
+                    && loginId.equals(this.loginId)
+                    && now < expiresAt - EXPIRY_MARGIN_MILLIS;
+        }
+
+        public boolean canRefresh(String loginId) {
+            return refreshToken != null && loginId.equals(this.loginId);
+        }
+    }
+
+    private final KeyValueStore preferences;
+
+    public CredentialStore(Platform platform) {
+        this.preferences = platform.getStore(PREFERENCES_NAME);
+    }
+
+    public Credentials load() {
+        Credentials credentials = new Credentials();
+        credentials.loginId = preferences.getString("login_id", null);
+        credentials.accessToken = preferences.getString("access_token", null);
+        credentials.refreshToken = preferences.getString("refresh_token", null);
+        credentials.userId = preferences.getString("user_id", null);
+        credentials.expiresAt = preferences.getLong("expires_at", 0);
+        return credentials;
+    }
+
+    public void save(Credentials credentials) {
+        preferences.edit()
+                .putString("login_id", credentials.loginId)
+                .putString("access_token", credentials.accessToken)
+                .putString("refresh_token", credentials.refreshToken)
+                .putString("user_id", credentials.userId)
+                .putLong("expires_at", credentials.expiresAt)
+                .apply();
+    }
+
+    // Forces the next checkAuth() to refresh, e.g. after a 401.
+    public void expire() {
+        preferences.edit().putLong("expires_at", 0).apply();
+    }
+
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+}
@@ -0,0 +1,111 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs download tasks on a bounded thread pool while limiting how many of them
+// hit the same host at once.  Results are returned in submission order.
+public class DownloadPipeline<T> {
+    public interface Task<T> {
+        T run() throws IOException;
+    }
+
+    public interface FailureListener {
+        void onFailure(IOException e);
+    }
+
+    private final ExecutorService executor;
+    private final int perHostLimit;
+    private final Map<String, Semaphore> hostPermits = new HashMap<>();
+    private final List<Future<T>> futures = new ArrayList<>();
+    private final AtomicLong taskTimeMillis = new AtomicLong();
+    private FailureListener failureListener = null;
+    private long startedAt = 0;
+    private long wallTimeMillis = 0;
+
+    public DownloadPipeline(int concurrency, int perHostLimit) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        this.perHostLimit = Math.max(1, perHostLimit);
+    }
+
+    public void setFailureListener(FailureListener listener) {
+        this.failureListener = listener;
+    }
+
+    public void submit(final String host, final Task<T> task) {
+        if (startedAt == 0) {
+            startedAt = System.currentTimeMillis();
+        }
+        final Semaphore permits = getPermits(host);
+        futures.add(executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                permits.acquire();
+                final long begin = System.currentTimeMillis();
+                try {
+                    return task.run();
+                } finally {
+                    taskTimeMillis.addAndGet(System.currentTimeMillis() - begin);
+                    permits.release();
+                }
+            }
+        }));
+    }
+
+    // Waits for every submitted task.  Failed tasks yield null at their index.
+    public List<T> await() throws InterruptedException {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException && failureListener != null) {
+                        failureListener.onFailure((IOException) cause);
+                    } else if (!(cause instanceof IOException)) {
+                        throw new RuntimeException(cause);
+                    }
+                    results.add(null);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            wallTimeMillis = startedAt == 0 ? 0 : System.currentTimeMillis() - startedAt;
+        }
+        return results;
+    }
+
+    public void cancel() {
+        executor.shutdownNow();
+    }
+
+    public long getWallTimeMillis() {
+        return wallTimeMillis;
+    }
+
+    // Sum of the time spent in each task, i.e. what the sequential path costs.
+    public long getSequentialTimeMillis() {
+        return taskTimeMillis.get();
+    }
+
+    private synchronized Semaphore getPermits(String host) {
+        String key = host == null ? "" : host;
+        Semaphore permits = hostPermits.get(key);
+        if (permits == null) {
+            permits = new Semaphore(perHostLimit);
+            hostPermits.put(key, permits);
+        }
+        return permits;
+    }
+}
@@ -0,0 +1,135 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.ParseException;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// Parsed ranking pages, keyed by URL, i.e. by ranking mode.  Rankings are
+// published once a day around noon JST, so a page fetched after the latest
+// publication stays fresh until the next one.
+public class FeedCache {
+    private static final String PREFERENCES_NAME = "feed_cache";
+    private static final TimeZone JST = TimeZone.getTimeZone("Asia/Tokyo");
+    private static final int PUBLICATION_HOUR = 12;
+    // a ranking that was still unchanged after the publication time may just
+    // be late, so check again soon
+    private static final long REVALIDATE_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    public static class Entry {
+        // JST date of the publication the page belongs to, e.g. 2019-05-01
+        public String date;
+        public long expiresAt;
+        public String etag;
+        public String lastModified;
+        public FeedPage page;
+
+        public boolean isFresh(long now) {
+            return getPublicationDate(now).equals(date) && now < expiresAt;
+        }
+
+        JsonObject toJson() {
+            final JsonObject obj = new JsonObject()
+                    .add("date", date)
+                    .add("expires_at", expiresAt)
+                    .add("page", page.toJson());
+            if (etag != null) {
+                obj.add("etag", etag);
+            }
+            if (lastModified != null) {
+                obj.add("last_modified", lastModified);
+            }
+            return obj;
+        }
+
+        static Entry fromJson(JsonObject obj) {
+            final Entry entry = new Entry();
+            entry.date = obj.getString("date", "");
+            entry.expiresAt = obj.getLong("expires_at", 0);
+            entry.etag = obj.getString("etag", null);
+            entry.lastModified = obj.getString("last_modified", null);
+            entry.page = FeedPage.fromJson(obj.get("page").asObject());
+            return entry;
+        }
+    }
+
+    private final KeyValueStore preferences;
+
+    public FeedCache(Platform platform) {
+        this.preferences = platform.getStore(PREFERENCES_NAME);
+    }
+
+    public Entry get(String url) {
+        final String value = preferences.getString(url, null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Entry.fromJson(Json.parse(value).asObject());
+        } catch (ParseException | UnsupportedOperationException | NullPointerException e) {
+            preferences.edit().remove(url).apply();
+            return null;
+        }
+    }
+
+    // Stores a page just fetched, or revalidated when modified is false.  A
+    // page still covering the day before the latest ranking is checked again
+    // soon; without a date, an unchanged page is taken for such a page.
+    public Entry put(String url, FeedPage page, String etag, String lastModified,
+                     boolean modified, long now) {
+        final boolean current = page.date != null
+                ? page.date.equals(getRankingDate(now))
+                : modified;
+        final Entry entry = new Entry();
+        entry.date = getPublicationDate(now);
+        entry.expiresAt = current
+                ? getNextPublication(now)
+                : Math.min(getNextPublication(now), now + REVALIDATE_INTERVAL_MILLIS);
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+        entry.page = page;
+        preferences.edit().putString(url, entry.toJson().toString()).apply();
+        return entry;
+    }
+
+    // The JST date of the latest publication at the given time.
+    static String getPublicationDate(long now) {
+        final Calendar calendar = getLatestPublication(now);
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        format.setTimeZone(JST);
+        return format.format(calendar.getTime());
+    }
+
+    // The date field of the latest ranking, which covers the day before its
+    // publication, e.g. 20190501 for the ranking published at noon on May 2.
+    static String getRankingDate(long now) {
+        final Calendar calendar = getLatestPublication(now);
+        calendar.add(Calendar.DAY_OF_MONTH, -1);
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd", Locale.US);
+        format.setTimeZone(JST);
+        return format.format(calendar.getTime());
+    }
+
+    static long getNextPublication(long now) {
+        final Calendar calendar = getLatestPublication(now);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static Calendar getLatestPublication(long now) {
+        final Calendar calendar = Calendar.getInstance(JST, Locale.US);
+        calendar.setTimeInMillis(now);
+        if (calendar.get(Calendar.HOUR_OF_DAY) < PUBLICATION_HOUR) {
+            calendar.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, PUBLICATION_HOUR);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar;
+    }
+}
@@ -0,0 +1,370 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.ParseException;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+// Loads the feed of an update mode: signs in with the stored OAuth tokens
+// when the mode needs it, pages through the app-api feeds from where the
+// last run stopped and revalidates cached ranking pages.
+public class FeedClient {
+    private static final String LOG_TAG = "muzei.FeedClient";
+
+    // What requests are signed with.  Replaced as a whole, never modified,
+    // so the threads of the mixed mode and the pager see a consistent one.
+    private static class Session {
+        final String accessToken;
+        final String userId;
+
+        Session(String accessToken, String userId) {
+            this.accessToken = accessToken;
+            this.userId = userId;
+        }
+    }
+
+    private final Platform platform;
+    private final OkHttpClient client;
+    private final RunMetrics metrics;
+    private final CredentialStore credentialStore;
+    private final FeedCache feedCache;
+    private final FeedCursorStore cursorStore;
+    // null when pref_useAuth is off
+    private String loginId = null;
+    private String loginPassword = null;
+
+    // null while not signed in
+    private volatile Session session = null;
+
+    public FeedClient(Platform platform, OkHttpClient client, RunMetrics metrics) {
+        this.platform = platform;
+        this.client = client;
+        this.metrics = metrics;
+        this.credentialStore = new CredentialStore(platform);
+        this.feedCache = new FeedCache(platform);
+        this.cursorStore = new FeedCursorStore(platform);
+    }
+
+    public FeedClient setLogin(String loginId, String loginPassword) {
+        this.loginId = loginId;
+        this.loginPassword = loginPassword;
+        return this;
+    }
+
+    public static boolean isAuthRequired(String updateMode) {
+        return updateMode.equals("follow") || updateMode.equals("bookmark");
+    }
+
+    public JsonObject getUpdateUriInfo(String updateMode) {
+        JsonObject ret = new JsonObject();
+
+        switch (updateMode) {
+            case "follow":
+                if (checkAuth() != null) {
+                    ret.add("use_auth_api", true);
+                    ret.add("paged", true);
+                    ret.add("url", PixivArtSourceDefines.FOLLOW_URL + "?restrict=public");
+                } else {
+                    ret.add("ranking", true);
+                    ret.add("url", PixivArtSourceDefines.DAILY_RANKING_URL);
+                }
+                break;
+            case "bookmark":
+                final Session current = checkAuth();
+                if (current != null) {
+                    ret.add("use_auth_api", true);
+                    ret.add("paged", true);
+                    ret.add("url", PixivArtSourceDefines.BOOKMARK_URL + "?user_id=" + current.userId + "&restrict=public");
+                } else {
+                    ret.add("ranking", true);
+                    ret.add("url", PixivArtSourceDefines.DAILY_RANKING_URL);
+                }
+                break;
+            case "weekly_rank":
+                ret.add("ranking", true);
+                ret.add("url", PixivArtSourceDefines.WEEKLY_RANKING_URL);
+                break;
+            case "monthly_rank":
+                ret.add("ranking", true);
+                ret.add("url", PixivArtSourceDefines.MONTHLY_RANKING_URL);
+                break;
+            case "daily_rank":
+            default:
+                ret.add("ranking", true);
+                ret.add("url", PixivArtSourceDefines.DAILY_RANKING_URL);
+        }
+        return ret;
+    }
+
+    // A paged feed continues from the cursor the last run saved.
+    public FeedPager createFeedPager(final JsonObject updateUriInfo, int maxItems) {
+        final String url = updateUriInfo.getString("url", "");
+        final boolean paged = updateUriInfo.getBoolean("paged", false);
+        String startUrl = url;
+        if (paged) {
+            String cursor = cursorStore.get(url);
+            if (cursor != null) {
+                platform.log(LOG_TAG, "continue from " + cursor);
+                startUrl = cursor;
+            }
+        }
+        return new FeedPager(new FeedPager.PageLoader() {
+            @Override
+            public FeedPage load(String url) throws IOException {
+                return loadFeedPage(updateUriInfo, url);
+            }
+        }, startUrl, paged ? maxItems : Integer.MAX_VALUE);
+    }
+
+    public void saveFeedCursor(JsonObject updateUriInfo, FeedPager pager) {
+        if (updateUriInfo.getBoolean("paged", false)) {
+            cursorStore.put(updateUriInfo.getString("url", ""), pager.getNextUrl());
+        }
+    }
+
+    private FeedPage loadFeedPage(JsonObject updateUriInfo, String url) throws IOException {
+        final JsonObject urlInfo = new JsonObject(updateUriInfo).set("url", url);
+        final RunMetrics.Stage fetchStage = metrics.begin("feed");
+        final long now = System.currentTimeMillis();
+        final boolean ranking = updateUriInfo.getBoolean("ranking", false);
+        final FeedCache.Entry cached = ranking ? feedCache.get(url) : null;
+        if (cached != null) {
+            if (cached.isFresh(now)) {
+                platform.log(LOG_TAG, "ranking of " + cached.date + " is still current: " + url);
+                fetchStage.cacheHit();
+                fetchStage.end();
+                return cached.page;
+            }
+            if (cached.etag != null) {
+                urlInfo.set("if_none_match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                urlInfo.set("if_modified_since", cached.lastModified);
+            }
+        }
+
+        final Response resp;
+        try {
+            resp = sendGetRequest(urlInfo);
+        } catch (IOException e) {
+            fetchStage.fail();
+            throw e;
+        }
+        if (resp.code() == 304 && cached != null) {
+            resp.close();
+            platform.log(LOG_TAG, "ranking not modified: " + url);
+            feedCache.put(url, cached.page, cached.etag, cached.lastModified, false, now);
+            fetchStage.cacheHit();
+            fetchStage.end();
+            return cached.page;
+        }
+        if (!resp.isSuccessful()) {
+            resp.close();
+            fetchStage.fail();
+            throw new IOException("Unsuccessful request: " + resp.code());
+        }
+        fetchStage.end();
+
+        final RunMetrics.Stage parseStage = metrics.begin("parse");
+        try {
+            FeedPage page = IllustParser.parse(resp.body().charStream());
+            parseStage.addBytes(resp.body().contentLength());
+            parseStage.end();
+            if (ranking) {
+                feedCache.put(url, page, resp.header("ETag"), resp.header("Last-Modified"), true, now);
+            }
+            return page;
+        } catch (IOException e) {
+            parseStage.fail();
+            throw e;
+        } finally {
+            resp.close();
+        }
+    }
+
+    // Signs in, one thread at a time; the others keep the current session
+    // until the new one is in place.
+    private synchronized Session checkAuth() {
+        final RunMetrics.Stage stage = metrics.begin("auth");
+        session = authorize(stage);
+        stage.end();
+        return session;
+    }
+
+    // After a 401 to a request signed with rejected: signs in again unless
+    // another thread already did.
+    private synchronized boolean renewSession(Session rejected) {
+        if (session != null && session != rejected) {
+            return true;
+        }
+        credentialStore.expire();
+        return checkAuth() != null;
+    }
+
+    private Session authorize(RunMetrics.Stage stage) {
+        if (loginId == null) {
+            return null;
+        }
+        if (loginId.equals("") || loginPassword.equals("")) {
+            credentialStore.clear();
+            return null;
+        }
+
+        CredentialStore.Credentials credentials = credentialStore.load();
+        if (credentials.isUsable(loginId, System.currentTimeMillis())) {
+            platform.log(LOG_TAG, "reuse stored access token");
+            stage.cacheHit();
+            return useCredentials(credentials);
+        }
+
+        if (credentials.canRefresh(loginId)) {
+            JsonObject data = createOAuthRequest();
+            data.add("grant_type", "refresh_token");
+            data.add("refresh_token", credentials.refreshToken);
+            credentials = requestToken(loginId, data);
+            if (credentials != null) {
+                return useCredentials(credentials);
+            }
+            platform.log(LOG_TAG, "refresh token rejected; fall back to password");
+            stage.retry();
+        }
+
+        JsonObject data = createOAuthRequest();
+        data.add("grant_type", "password");
+        data.add("username", loginId);
+        data.add("password", loginPassword);
+        credentials = requestToken(loginId, data);
+        if (credentials == null) {
+            credentialStore.clear();
+            stage.fail();
+            return null;
+        }
+        return useCredentials(credentials);
+    }
+
+    private JsonObject createOAuthRequest() {
+        JsonObject data = new JsonObject();
+        data.add("get_secure_url", 1);
+        data.add("client_id", PixivArtSourceDefines.CLIENT_ID);
+        data.add("client_secret", PixivArtSourceDefines.CLIENT_SECRET);
+        return data;
+    }
+
+    private CredentialStore.Credentials requestToken(String loginId, JsonObject data) {
+        JsonObject ret;
+        try {
+            Response resp = sendPostRequest(
+                    PixivArtSourceDefines.OAUTH_URL,
+                    data,
+                    "application/x-www-form-urlencoded"
+            );
+            ret = Json.parse(resp.body().string()).asObject();
+        } catch (IOException | ParseException | UnsupportedOperationException e) {
+            return null;
+        }
+        if (ret.getBoolean("has_error", false) || ret.get("response") == null) {
+            return null;
+        }
+        final JsonObject tokens = ret.get("response").asObject();
+        final CredentialStore.Credentials credentials = new CredentialStore.Credentials();
+        credentials.loginId = loginId;
+        credentials.accessToken = tokens.getString("access_token", null);
+        credentials.refreshToken = tokens.getString("refresh_token", null);
+        credentials.userId = tokens.get("user").asObject().getString("id", null);
+        credentials.expiresAt = System.currentTimeMillis()
+                + tokens.getLong("expires_in", 0) * 1000;
+        if (credentials.accessToken == null || credentials.userId == null) {
+            return null;
+        }
+        credentialStore.save(credentials);
+        return credentials;
+    }
+
+    private static Session useCredentials(CredentialStore.Credentials credentials) {
+        return new Session(credentials.accessToken, credentials.userId);
+    }
+
+    private Response sendGetRequest(JsonObject urlInfo) throws IOException {
+        String url = urlInfo.getString("url", "");
+
+        platform.log(LOG_TAG, "Request: " + url);
+        final Session current = session;
+        Request.Builder builder = buildGetRequest(urlInfo, current);
+        Response resp = client.newCall(builder.build()).execute();
+        if (resp.code() == 401 && current != null && !urlInfo.getBoolean("auth_retried", false)) {
+            // the stored token was revoked or expired early; refresh once and retry
+            resp.close();
+            if (renewSession(current)) {
+                urlInfo.set("auth_retried", true);
+                return sendGetRequest(urlInfo);
+            }
+            throw new IOException("Authorization failed");
+        }
+        return resp;
+    }
+
+    private Request.Builder buildGetRequest(JsonObject urlInfo, Session current) {
+        Request.Builder builder = applyCommonHeaders(new Request.Builder(), urlInfo.getBoolean("use_auth_api", false))
+                .url(urlInfo.getString("url", ""));
+        String referer = urlInfo.getString("referer", null);
+        if (referer != null) {
+            builder.addHeader("Referer", referer);
+        }
+        String ifNoneMatch = urlInfo.getString("if_none_match", null);
+        if (ifNoneMatch != null) {
+            builder.addHeader("If-None-Match", ifNoneMatch);
+        }
+        String ifModifiedSince = urlInfo.getString("if_modified_since", null);
+        if (ifModifiedSince != null) {
+            builder.addHeader("If-Modified-Since", ifModifiedSince);
+        }
+        if (current != null) {
+            builder.addHeader("Authorization", "Bearer " + current.accessToken);
+        }
+        return builder;
+    }
+
+    private Request.Builder applyCommonHeaders(Request.Builder builder, boolean useAuthAPI) {
+        if (useAuthAPI) {
+            return builder.addHeader("User-Agent", PixivArtSourceDefines.APP_USER_AGENT)
+                    .addHeader("App-OS", PixivArtSourceDefines.APP_OS)
+                    .addHeader("App-OS-Version", PixivArtSourceDefines.APP_OS_VERSION)
+                    .addHeader("App-Version", PixivArtSourceDefines.APP_VERSION);
+        }
+        return builder.addHeader("User-Agent", PixivArtSourceDefines.BROWSER_USER_AGENT);
+    }
+
+    private Response sendPostRequest(String url, JsonObject bodyData,
+                                     String contentType) throws IOException {
+        String bodyString;
+        if (contentType.equals("application/json")) {
+            bodyString = bodyData.toString();
+        } else {
+            bodyString = FormEncoder.encode(bodyData);
+        }
+        RequestBody body = RequestBody.create(
+                MediaType.parse(contentType),
+                bodyString
+        );
+        return sendPostRequest(url, body);
+    }
+
+    private Response sendPostRequest(String url, RequestBody body) throws IOException {
+        platform.log(LOG_TAG, "Request: " + url);
+
+        Request.Builder builder = applyCommonHeaders(new Request.Builder(), true)
+                .addHeader("Content-type", body.contentType().toString())
+                .post(body)
+                .url(url);
+        // only the token requests are posted, and those are made while
+        // signing in, without a session
+        return client.newCall(builder.build()).execute();
+    }
+}
@@ -0,0 +1,26 @@
+package com.pixiv.muzei.pixivsource;
+
+// Remembers where a paged feed stopped, keyed by the feed's first page URL,
+// so that the next run continues with the following page.
+public class FeedCursorStore {
+    private static final String PREFERENCES_NAME = "feed_cursor";
+
+    private final KeyValueStore preferences;
+
+    public FeedCursorStore(Platform platform) {
+        this.preferences = platform.getStore(PREFERENCES_NAME);
+    }
+
+    public String get(String feedUrl) {
+        return preferences.getString(feedUrl, null);
+    }
+
+    // A null cursor makes the next run start from the first page again.
+    public void put(String feedUrl, String cursor) {
+        if (cursor == null) {
+            preferences.edit().remove(feedUrl).apply();
+        } else {
+            preferences.edit().putString(feedUrl, cursor).apply();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Interleaves several feeds by weight and drops illusts already taken from
+// another feed.
+public class FeedMixer {
+    private FeedMixer() {
+    }
+
+    // Smooth weighted round-robin: a feed with weight 2 contributes two
+    // items for every item of a feed with weight 1, spread evenly.
+    public static List<Illust> mix(List<List<Illust>> feeds, int[] weights, int maxItems) {
+        final int[] positions = new int[feeds.size()];
+        final int[] credits = new int[feeds.size()];
+        final Set<Integer> seen = new HashSet<>();
+        final List<Illust> mixed = new ArrayList<>();
+
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += Math.max(0, weight);
+        }
+        if (totalWeight == 0) {
+            return mixed;
+        }
+
+        while (mixed.size() < maxItems) {
+            int chosen = -1;
+            for (int i = 0; i < feeds.size(); i++) {
+                if (weights[i] <= 0 || positions[i] >= feeds.get(i).size()) {
+                    continue;
+                }
+                credits[i] += weights[i];
+                if (chosen < 0 || credits[i] > credits[chosen]) {
+                    chosen = i;
+                }
+            }
+            if (chosen < 0) {
+                break;
+            }
+            credits[chosen] -= totalWeight;
+            final Illust illust = feeds.get(chosen).get(positions[chosen]++);
+            if (seen.add(illust.id)) {
+                mixed.add(illust);
+            }
+        }
+        return mixed;
+    }
+}
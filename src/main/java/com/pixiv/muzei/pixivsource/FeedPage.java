@@ -0,0 +1,50 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// One page of a ranking or illusts response.
+public class FeedPage {
+    public final List<Illust> illusts;
+    // null on the last page, and for ranking.php which isn't paged this way
+    public final String nextUrl;
+    // the day a ranking.php page covers, e.g. 20190501; null for app-api
+    public final String date;
+
+    public FeedPage(List<Illust> illusts, String nextUrl) {
+        this(illusts, nextUrl, null);
+    }
+
+    public FeedPage(List<Illust> illusts, String nextUrl, String date) {
+        this.illusts = illusts;
+        this.nextUrl = nextUrl;
+        this.date = date;
+    }
+
+    public JsonObject toJson() {
+        final JsonArray array = new JsonArray();
+        for (Illust illust : illusts) {
+            array.add(illust.toJson());
+        }
+        final JsonObject obj = new JsonObject().add("illusts", array);
+        if (nextUrl != null) {
+            obj.add("next_url", nextUrl);
+        }
+        if (date != null) {
+            obj.add("date", date);
+        }
+        return obj;
+    }
+
+    public static FeedPage fromJson(JsonObject obj) {
+        final List<Illust> illusts = new ArrayList<>();
+        for (JsonValue value : obj.get("illusts").asArray()) {
+            illusts.add(Illust.fromJson(value.asObject()));
+        }
+        return new FeedPage(illusts, obj.getString("next_url", null), obj.getString("date", null));
+    }
+}
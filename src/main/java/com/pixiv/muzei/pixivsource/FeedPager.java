@@ -0,0 +1,73 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Follows next_url of a paged feed until enough illusts are collected.  As
+// soon as a page is handed out the following one is requested in the
+// background, so it is usually ready by the time the caller asks for it.
+public class FeedPager {
+    public interface PageLoader {
+        FeedPage load(String url) throws IOException;
+    }
+
+    private final PageLoader loader;
+    private final int maxItems;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private String nextUrl;
+    private Future<FeedPage> prefetched = null;
+    private int count = 0;
+
+    public FeedPager(PageLoader loader, String startUrl, int maxItems) {
+        this.loader = loader;
+        this.nextUrl = startUrl;
+        this.maxItems = maxItems;
+    }
+
+    // Returns null once the feed or the pool is exhausted.
+    public FeedPage next() throws IOException, InterruptedException {
+        final FeedPage page;
+        if (prefetched != null) {
+            try {
+                page = prefetched.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                prefetched = null;
+            }
+        } else if (nextUrl != null && count < maxItems) {
+            page = loader.load(nextUrl);
+        } else {
+            return null;
+        }
+
+        count += page.illusts.size();
+        nextUrl = page.nextUrl;
+        if (nextUrl != null && count < maxItems) {
+            final String url = nextUrl;
+            prefetched = executor.submit(new Callable<FeedPage>() {
+                @Override
+                public FeedPage call() throws Exception {
+                    return loader.load(url);
+                }
+            });
+        }
+        return page;
+    }
+
+    // Where the next run should continue, or null to start over.
+    public String getNextUrl() {
+        return nextUrl;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,30 @@
+package com.pixiv.muzei.pixivsource;
+
+// Chooses which image variant to download from the kind of network and the
+// measured throughput.  Originals are several megabytes, large (600x1200)
+// and medium (540x540) a few hundred and a hundred kilobytes.
+public class FetchPolicy {
+    public static final String ORIGINAL = "original";
+    public static final String LARGE = "large";
+    public static final String MEDIUM = "medium";
+
+    // bytes per second
+    private static final float ORIGINAL_MIN_THROUGHPUT = 256 * 1024;
+    private static final float LARGE_MIN_THROUGHPUT = 64 * 1024;
+
+    private FetchPolicy() {
+    }
+
+    // An unknown throughput is negative; then only the network type counts.
+    // Metered networks never get originals, which wait for an unmetered one.
+    public static String choose(boolean metered, float bytesPerSecond) {
+        final boolean fast = bytesPerSecond < 0 || bytesPerSecond >= ORIGINAL_MIN_THROUGHPUT;
+        if (metered) {
+            return fast ? LARGE : MEDIUM;
+        }
+        if (fast) {
+            return ORIGINAL;
+        }
+        return bytesPerSecond >= LARGE_MIN_THROUGHPUT ? LARGE : MEDIUM;
+    }
+}
@@ -0,0 +1,28 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+// Encodes the members of a JsonObject as an
+// application/x-www-form-urlencoded body.
+public class FormEncoder {
+    private FormEncoder() {
+    }
+
+    public static String encode(JsonObject bodyData) {
+        StringBuilder buf = new StringBuilder();
+        for (JsonObject.Member member : bodyData) {
+            JsonValue v = member.getValue();
+            if (buf.length() > 0) {
+                buf.append('&');
+            }
+            buf.append(member.getName()).append('=');
+            if (v.isNumber()) {
+                buf.append(v.asInt());
+            } else {
+                buf.append(v.asString());
+            }
+        }
+        return buf.toString();
+    }
+}
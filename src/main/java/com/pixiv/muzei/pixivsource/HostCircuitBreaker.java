@@ -0,0 +1,114 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Tracks consecutive failures per host.  Each failure backs the host off
+// exponentially, and after FAILURE_THRESHOLD of them in a row the circuit
+// opens: requests to the host are refused until OPEN_MILLIS have passed,
+// then a single trial request decides whether it closes again.  Only
+// failures of the host itself count, not answers such as a 404.
+public class HostCircuitBreaker {
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 5 * 60 * 1000;
+    // callers wait out a backoff shorter than this instead of giving up
+    private static final long MAX_WAIT_MILLIS = 4 * 1000;
+
+    // Thrown instead of sending a request to a host that is backed off.
+    public static class HostUnavailableException extends IOException {
+        public HostUnavailableException(String host, long millis) {
+            super(host + " is unavailable for " + millis + "ms");
+        }
+    }
+
+    private static class HostState {
+        int failures;
+        long retryAt;
+        boolean trialInFlight;
+    }
+
+    private final Map<String, HostState> hosts = new HashMap<>();
+
+    // Returns once a request to the host may be sent.  Waits for a short
+    // backoff, throws for a long one or an open circuit.  True when the
+    // request is the trial of a half-open circuit; the caller then has to
+    // end it with releaseTrial, whatever the outcome.
+    public boolean acquire(String host) throws IOException {
+        if (host == null) {
+            return false;
+        }
+        final long delay;
+        synchronized (this) {
+            final HostState state = hosts.get(host);
+            if (state == null) {
+                return false;
+            }
+            final long now = System.currentTimeMillis();
+            if (state.failures >= FAILURE_THRESHOLD) {
+                if (now < state.retryAt || state.trialInFlight) {
+                    throw new HostUnavailableException(host, Math.max(0, state.retryAt - now));
+                }
+                // half-open: let this one request find out
+                state.trialInFlight = true;
+                return true;
+            }
+            delay = state.retryAt - now;
+        }
+        if (delay <= 0) {
+            return false;
+        }
+        if (delay > MAX_WAIT_MILLIS) {
+            throw new HostUnavailableException(host, delay);
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while backing off " + host);
+        }
+        return false;
+    }
+
+    // Lets the next request try the host again if the trial recorded
+    // neither a success nor a failure.
+    public synchronized void releaseTrial(String host) {
+        final HostState state = host == null ? null : hosts.get(host);
+        if (state != null) {
+            state.trialInFlight = false;
+        }
+    }
+
+    public synchronized void recordSuccess(String host) {
+        if (host != null) {
+            hosts.remove(host);
+        }
+    }
+
+    public synchronized void recordFailure(String host) {
+        if (host == null) {
+            return;
+        }
+        HostState state = hosts.get(host);
+        if (state == null) {
+            state = new HostState();
+            hosts.put(host, state);
+        }
+        state.failures++;
+        state.trialInFlight = false;
+        final long now = System.currentTimeMillis();
+        if (state.failures >= FAILURE_THRESHOLD) {
+            state.retryAt = now + OPEN_MILLIS;
+        } else {
+            final long backoff = BASE_BACKOFF_MILLIS << (state.failures - 1);
+            state.retryAt = now + Math.min(backoff, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    public synchronized boolean isOpen(String host) {
+        final HostState state = hosts.get(host);
+        return state != null && state.failures >= FAILURE_THRESHOLD;
+    }
+}
@@ -0,0 +1,163 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+// Network interceptor which counts connections, TLS handshakes, connection
+// reuse and transferred bytes per host.
+public class HttpStats implements Interceptor {
+    public static class HostStats {
+        public long connections;
+        public long handshakes;
+        public long requests;
+        public long reusedRequests;
+        public long bytesSent;
+        public long bytesReceived;
+
+        public double getReuseRatio() {
+            if (requests == 0) {
+                return 0;
+            }
+            return (double) reusedRequests / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "connections=%d handshakes=%d requests=%d reuse=%.2f sent=%d received=%d",
+                    connections, handshakes, requests, getReuseRatio(), bytesSent, bytesReceived
+            );
+        }
+    }
+
+    private final Map<String, HostStats> hosts = new TreeMap<>();
+    private final Map<Connection, Boolean> seenConnections = new WeakHashMap<>();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final String host = request.url().host();
+        final Connection connection = chain.connection();
+
+        synchronized (this) {
+            HostStats stat = getOrCreate(host);
+            stat.requests++;
+            if (connection != null) {
+                if (seenConnections.containsKey(connection)) {
+                    stat.reusedRequests++;
+                } else {
+                    seenConnections.put(connection, Boolean.TRUE);
+                    stat.connections++;
+                    if (connection.handshake() != null) {
+                        stat.handshakes++;
+                    }
+                }
+            }
+            if (request.body() != null && request.body().contentLength() > 0) {
+                stat.bytesSent += request.body().contentLength();
+            }
+        }
+
+        final Response response = chain.proceed(request);
+        if (response.body() == null) {
+            return response;
+        }
+        return response.newBuilder()
+                .body(new CountingResponseBody(host, response.body()))
+                .build();
+    }
+
+    public synchronized HostStats get(String host) {
+        HostStats stat = hosts.get(host);
+        HostStats copy = new HostStats();
+        if (stat != null) {
+            copy.connections = stat.connections;
+            copy.handshakes = stat.handshakes;
+            copy.requests = stat.requests;
+            copy.reusedRequests = stat.reusedRequests;
+            copy.bytesSent = stat.bytesSent;
+            copy.bytesReceived = stat.bytesReceived;
+        }
+        return copy;
+    }
+
+    public synchronized void reset() {
+        hosts.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, HostStats> entry : hosts.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    private HostStats getOrCreate(String host) {
+        HostStats stat = hosts.get(host);
+        if (stat == null) {
+            stat = new HostStats();
+            hosts.put(host, stat);
+        }
+        return stat;
+    }
+
+    private synchronized void addReceived(String host, long bytes) {
+        getOrCreate(host).bytesReceived += bytes;
+    }
+
+    private class CountingResponseBody extends ResponseBody {
+        private final String host;
+        private final ResponseBody body;
+        private BufferedSource source = null;
+
+        CountingResponseBody(String host, ResponseBody body) {
+            this.host = host;
+            this.body = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return body.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            if (source == null) {
+                source = Okio.buffer(new ForwardingSource(body.source()) {
+                    @Override
+                    public long read(Buffer sink, long byteCount) throws IOException {
+                        long read = super.read(sink, byteCount);
+                        if (read > 0) {
+                            addReceived(host, read);
+                        }
+                        return read;
+                    }
+                });
+            }
+            return source;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact record of one illust from a ranking or illusts response, holding
+// only the fields the worker needs.
+public class Illust {
+    public int id = -1;
+    public int restrict = -1;
+    public String title = "";
+    public String userName = "";
+    public int width = 0;
+    public int height = 0;
+    // -1 where the response doesn't say
+    public int pageCount = -1;
+    public int xRestrict = -1;
+    // "illust", "manga" or "ugoira"
+    public String type = null;
+    public final List<String> tags = new ArrayList<>();
+
+    // thumbnail of ranking.php items, from which the original URL is guessed
+    public String url = null;
+    public String originalUrl = null;
+    public String largeUrl = null;
+    public String mediumUrl = null;
+
+    public boolean isValid() {
+        return id >= 0 && restrict >= 0;
+    }
+
+    public boolean isOldType() {
+        return originalUrl == null && largeUrl == null && mediumUrl == null;
+    }
+
+    public String getToken() {
+        return id + "." + restrict;
+    }
+
+    public JsonObject toJson() {
+        final JsonObject obj = new JsonObject()
+                .add("id", id)
+                .add("restrict", restrict)
+                .add("title", title)
+                .add("user_name", userName)
+                .add("width", width)
+                .add("height", height)
+                .add("page_count", pageCount)
+                .add("x_restrict", xRestrict);
+        addIfPresent(obj, "type", type);
+        if (!tags.isEmpty()) {
+            final JsonArray array = new JsonArray();
+            for (String tag : tags) {
+                array.add(tag);
+            }
+            obj.add("tags", array);
+        }
+        addIfPresent(obj, "url", url);
+        addIfPresent(obj, "original_url", originalUrl);
+        addIfPresent(obj, "large_url", largeUrl);
+        addIfPresent(obj, "medium_url", mediumUrl);
+        return obj;
+    }
+
+    public static Illust fromJson(JsonObject obj) {
+        final Illust illust = new Illust();
+        illust.id = obj.getInt("id", -1);
+        illust.restrict = obj.getInt("restrict", -1);
+        illust.title = obj.getString("title", "");
+        illust.userName = obj.getString("user_name", "");
+        illust.width = obj.getInt("width", 0);
+        illust.height = obj.getInt("height", 0);
+        illust.pageCount = obj.getInt("page_count", -1);
+        illust.xRestrict = obj.getInt("x_restrict", -1);
+        illust.type = obj.getString("type", null);
+        if (obj.get("tags") != null) {
+            for (JsonValue tag : obj.get("tags").asArray()) {
+                illust.tags.add(tag.asString());
+            }
+        }
+        illust.url = obj.getString("url", null);
+        illust.originalUrl = obj.getString("original_url", null);
+        illust.largeUrl = obj.getString("large_url", null);
+        illust.mediumUrl = obj.getString("medium_url", null);
+        return illust;
+    }
+
+    private static void addIfPresent(JsonObject obj, String name, String value) {
+        // minimal-json turns null into a JSON null, which getString() can't read back
+        if (value != null) {
+            obj.add(name, value);
+        }
+    }
+
+    // Names the downloaded image, which doesn't depend on the restrict the
+    // feed reported.  Only the first page of an illust is ever shown.
+    public String getFileKey() {
+        return getFileKey(id);
+    }
+
+    public static String getFileKey(int id) {
+        return id + "_p0";
+    }
+}
@@ -0,0 +1,142 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Rejects illusts on their feed metadata before any image is requested, and
+// counts what it rejected.  Metadata a response doesn't carry never rejects.
+public class IllustFilter {
+    public static final String ANY = "any";
+    public static final String PORTRAIT = "portrait";
+    public static final String LANDSCAPE = "landscape";
+
+    // JPEG illustrations run at about two to three bits per pixel
+    private static final float ESTIMATED_BYTES_PER_PIXEL = 0.3f;
+    // longer side of the master images behind "large" and "medium"
+    private static final int LARGE_SIZE = 1200;
+    private static final int MEDIUM_SIZE = 540;
+
+    private String orientation = ANY;
+    private final Set<String> excludedTags = new HashSet<>();
+    private boolean excludeSexual = false;
+    private boolean singlePageOnly = false;
+    private boolean excludeUgoira = false;
+
+    private int accepted = 0;
+    private final Map<String, Integer> rejected = new LinkedHashMap<>();
+    private long bytesAvoided = 0;
+
+    public IllustFilter setOrientation(String orientation) {
+        this.orientation = orientation;
+        return this;
+    }
+
+    // Comma separated, matched whole and case-insensitively.
+    public IllustFilter setExcludedTags(String tags) {
+        excludedTags.clear();
+        for (String tag : tags.split(",")) {
+            if (!tag.trim().isEmpty()) {
+                excludedTags.add(tag.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return this;
+    }
+
+    public IllustFilter setExcludeSexual(boolean excludeSexual) {
+        this.excludeSexual = excludeSexual;
+        return this;
+    }
+
+    public IllustFilter setSinglePageOnly(boolean singlePageOnly) {
+        this.singlePageOnly = singlePageOnly;
+        return this;
+    }
+
+    public IllustFilter setExcludeUgoira(boolean excludeUgoira) {
+        this.excludeUgoira = excludeUgoira;
+        return this;
+    }
+
+    // Whether to download the illust.  Rejections are counted along with an
+    // estimate of the bytes the image of imageVariant would have taken.
+    public synchronized boolean accept(Illust illust, String imageVariant) {
+        final String reason = getRejectReason(illust);
+        if (reason == null) {
+            accepted++;
+            return true;
+        }
+        final Integer count = rejected.get(reason);
+        rejected.put(reason, count == null ? 1 : count + 1);
+        bytesAvoided += estimateBytes(illust, imageVariant);
+        return false;
+    }
+
+    private String getRejectReason(Illust illust) {
+        if (!isOrientationAccepted(illust.width, illust.height)) {
+            return "orientation";
+        }
+        if (excludeSexual && illust.xRestrict > 0) {
+            return "x_restrict";
+        }
+        if (excludeUgoira && "ugoira".equals(illust.type)) {
+            return "ugoira";
+        }
+        if (singlePageOnly && illust.pageCount > 1) {
+            return "page_count";
+        }
+        for (String tag : illust.tags) {
+            if (excludedTags.contains(tag.toLowerCase(Locale.ROOT))) {
+                return "tag";
+            }
+        }
+        return null;
+    }
+
+    private boolean isOrientationAccepted(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return true;
+        }
+        switch (orientation) {
+            case PORTRAIT:
+                return height >= width;
+            case LANDSCAPE:
+                return width >= height;
+            default:
+                return true;
+        }
+    }
+
+    public static long estimateBytes(Illust illust, String imageVariant) {
+        if (illust.width <= 0 || illust.height <= 0) {
+            return 0;
+        }
+        float scale = 1;
+        final int longSide = Math.max(illust.width, illust.height);
+        if (imageVariant.equals(FetchPolicy.LARGE) && longSide > LARGE_SIZE) {
+            scale = (float) LARGE_SIZE / longSide;
+        } else if (imageVariant.equals(FetchPolicy.MEDIUM) && longSide > MEDIUM_SIZE) {
+            scale = (float) MEDIUM_SIZE / longSide;
+        }
+        return (long) (illust.width * scale * illust.height * scale * ESTIMATED_BYTES_PER_PIXEL);
+    }
+
+    public synchronized int getAcceptedCount() {
+        return accepted;
+    }
+
+    public synchronized Map<String, Integer> getRejectedCounts() {
+        return new LinkedHashMap<>(rejected);
+    }
+
+    public synchronized long getBytesAvoided() {
+        return bytesAvoided;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "accepted=" + accepted + " rejected=" + rejected + " bytes_avoided~" + bytesAvoided;
+    }
+}
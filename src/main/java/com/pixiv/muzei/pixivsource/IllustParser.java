@@ -0,0 +1,272 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.JsonHandler;
+import com.eclipsesource.json.JsonParser;
+import com.eclipsesource.json.ParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// Streaming parser for ranking.php and app-api illusts responses.  It reads
+// the body incrementally and keeps only Illust records instead of building
+// the whole JSON tree.
+public class IllustParser {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String ARRAY_ITEM = "#";
+
+    public static FeedPage parse(Reader reader) throws IOException {
+        Handler handler = new Handler();
+        try {
+            new JsonParser(handler).parse(reader, BUFFER_SIZE);
+        } catch (ParseException e) {
+            throw new IOException("Malformed response: " + e.getMessage());
+        }
+        if (!handler.foundContents) {
+            throw new IOException("Not found contents");
+        }
+        return new FeedPage(handler.illusts, handler.nextUrl, handler.date);
+    }
+
+    private static class Frame {
+        final String name;
+        int index = 0;
+
+        Frame(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Handler extends JsonHandler<Frame, Frame> {
+        final List<Illust> illusts = new ArrayList<>();
+        boolean foundContents = false;
+        String nextUrl = null;
+        String date = null;
+
+        // names of the containers from the root down to the current value
+        private final ArrayList<Frame> stack = new ArrayList<>();
+        private String pendingName = null;
+
+        private Illust current = null;
+        private String topLevelLarge = null;
+        private String topLevelMedium = null;
+        private String topLevelOriginal = null;
+        private int contentTypeSexual = -1;
+
+        @Override
+        public Frame startObject() {
+            Frame frame = new Frame(pendingName);
+            stack.add(frame);
+            if (isIllustFrame()) {
+                current = new Illust();
+                topLevelLarge = topLevelMedium = topLevelOriginal = null;
+                contentTypeSexual = -1;
+            }
+            return frame;
+        }
+
+        @Override
+        public void endObject(Frame object) {
+            if (isIllustFrame() && current != null) {
+                finishIllust();
+            }
+            stack.remove(stack.size() - 1);
+        }
+
+        @Override
+        public Frame startArray() {
+            Frame frame = new Frame(pendingName);
+            stack.add(frame);
+            if (stack.size() == 2 && isContentsName(frame.name)) {
+                foundContents = true;
+            }
+            return frame;
+        }
+
+        @Override
+        public void endArray(Frame array) {
+            stack.remove(stack.size() - 1);
+        }
+
+        @Override
+        public void startArrayValue(Frame array) {
+            pendingName = ARRAY_ITEM;
+        }
+
+        @Override
+        public void endArrayValue(Frame array) {
+            array.index++;
+        }
+
+        @Override
+        public void startObjectValue(Frame object, String name) {
+            pendingName = name;
+        }
+
+        @Override
+        public void endString(String value) {
+            if (current != null) {
+                onIllustValue(value, -1);
+            } else if (stack.size() == 1 && "next_url".equals(pendingName)) {
+                nextUrl = value;
+            } else if (stack.size() == 1 && "date".equals(pendingName)) {
+                date = value;
+            }
+        }
+
+        @Override
+        public void endNumber(String value) {
+            if (current != null) {
+                int number;
+                try {
+                    number = Integer.parseInt(value, 10);
+                } catch (NumberFormatException e) {
+                    number = -1;
+                }
+                onIllustValue(null, number);
+            }
+        }
+
+        private boolean isContentsName(String name) {
+            return "contents".equals(name) || "illusts".equals(name);
+        }
+
+        private boolean isIllustFrame() {
+            return stack.size() == 3
+                    && isContentsName(stack.get(1).name)
+                    && ARRAY_ITEM.equals(stack.get(2).name);
+        }
+
+        // depth of the current value relative to the illust object
+        private String parentName(int level) {
+            int i = stack.size() - level;
+            return i >= 3 ? stack.get(i).name : null;
+        }
+
+        private void onIllustValue(String string, int number) {
+            final String name = pendingName;
+            final int depth = stack.size() - 3;
+            if (depth == 0) {
+                switch (name) {
+                    case "id":
+                    case "illust_id":
+                        if (current.id < 0) {
+                            current.id = string != null ? parseInt(string) : number;
+                        }
+                        break;
+                    case "restrict":
+                        current.restrict = string != null ? parseInt(string) : number;
+                        break;
+                    case "title":
+                        current.title = string != null ? string : current.title;
+                        break;
+                    case "user_name":
+                        current.userName = string != null ? string : current.userName;
+                        break;
+                    case "width":
+                        current.width = string != null ? parseInt(string) : number;
+                        break;
+                    case "height":
+                        current.height = string != null ? parseInt(string) : number;
+                        break;
+                    case "url":
+                        current.url = string;
+                        break;
+                    case "page_count":
+                    case "illust_page_count":
+                        current.pageCount = string != null ? parseInt(string) : number;
+                        break;
+                    case "x_restrict":
+                        current.xRestrict = string != null ? parseInt(string) : number;
+                        break;
+                    case "type":
+                        current.type = string;
+                        break;
+                    case "illust_type":
+                        // ranking.php numbers the types
+                        current.type = toTypeName(string != null ? parseInt(string) : number);
+                        break;
+                }
+            } else if (depth == 1) {
+                final String parent = parentName(1);
+                if ("tags".equals(parent) && ARRAY_ITEM.equals(name) && string != null) {
+                    // ranking.php: "tags": ["...", ...]
+                    current.tags.add(string);
+                } else if ("user".equals(parent) && "name".equals(name) && string != null) {
+                    current.userName = string;
+                } else if ("illust_content_type".equals(parent) && "sexual".equals(name)) {
+                    contentTypeSexual = number;
+                } else if ("meta_single_page".equals(parent) && "original_image_url".equals(name)) {
+                    topLevelOriginal = string;
+                } else if ("image_urls".equals(parent)) {
+                    if ("large".equals(name)) {
+                        topLevelLarge = string;
+                    } else if ("medium".equals(name)) {
+                        topLevelMedium = string;
+                    }
+                }
+            } else if (depth == 2) {
+                // app-api: "tags": [{"name": "...", "translated_name": ...}, ...]
+                if ("tags".equals(parentName(2)) && "name".equals(name) && string != null) {
+                    current.tags.add(string);
+                }
+            } else if (depth == 3) {
+                // meta_pages[0].image_urls.*
+                if ("image_urls".equals(parentName(1))
+                        && "meta_pages".equals(parentName(3))
+                        && stack.get(stack.size() - 3).index == 0) {
+                    switch (name) {
+                        case "original":
+                            current.originalUrl = string;
+                            break;
+                        case "large":
+                            current.largeUrl = string;
+                            break;
+                        case "medium":
+                            current.mediumUrl = string;
+                            break;
+                    }
+                }
+            }
+        }
+
+        private void finishIllust() {
+            if (current.restrict < 0) {
+                current.restrict = contentTypeSexual;
+            }
+            if (topLevelOriginal != null) {
+                current.originalUrl = topLevelOriginal;
+            }
+            if (current.largeUrl == null) {
+                current.largeUrl = topLevelLarge;
+            }
+            if (current.mediumUrl == null) {
+                current.mediumUrl = topLevelMedium;
+            }
+            illusts.add(current);
+            current = null;
+        }
+
+        private static String toTypeName(int type) {
+            switch (type) {
+                case 0:
+                    return "illust";
+                case 1:
+                    return "manga";
+                case 2:
+                    return "ugoira";
+                default:
+                    return null;
+            }
+        }
+
+        private static int parseInt(String value) {
+            try {
+                return Integer.parseInt(value, 10);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Okio;
+import okio.Sink;
+
+// Downloads illust images into the ArtworkDiskCache: finds the original of
+// ranking.php thumbnails, revalidates and resumes cached files and shares
+// files with identical content.  Used by the worker for every refresh and by
+// the provider for artworks published without a file.  Files are returned as
+// file:// URIs, the form artworks and the SyncCheckpoint keep them in.
+public class ImageFetcher {
+    private static final String LOG_TAG = "muzei.ImageFetcher";
+    private static final long PROBE_TIMEOUT_SECONDS = 15;
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String FILE_SCHEME = "file://";
+
+    private static class DownloadLock {
+        // threads holding or waiting for the lock, guarded by downloadLocks
+        int users = 0;
+    }
+
+    // The server answered with an error status instead of the image.
+    public static class StatusException extends IOException {
+        public final int code;
+
+        public StatusException(int code) {
+            super("Unsuccessful request: " + code);
+            this.code = code;
+        }
+    }
+
+    // No URL of the image exists, e.g. the illust was deleted.
+    public static class MissingImageException extends IOException {
+        public MissingImageException(String message) {
+            super(message);
+        }
+    }
+
+    // Fits a downloaded image to the screen in place, see ImageScaler.
+    // Returns true if the file was rewritten.
+    public interface Scaler {
+        boolean downsample(File file, int width, int height) throws IOException;
+    }
+
+    // Something went wrong on this side or with a response we couldn't use.
+    // It says nothing about the host, and a retry starts clean.
+    public static class LocalException extends IOException {
+        public LocalException(String message) {
+            super(message);
+        }
+    }
+
+    // bytes not downloaded again thanks to resumed downloads, since process start
+    private static final AtomicLong resumedBytes = new AtomicLong();
+    // bytes not kept twice because another key already had identical content
+    private static final AtomicLong dedupedBytes = new AtomicLong();
+    // one download per file key at a time across the worker, the provider and
+    // the upgrade, which would otherwise write the same part file; an entry
+    // lives while a thread holds or waits for it
+    private static final Map<String, DownloadLock> downloadLocks = new HashMap<>();
+
+    private final Platform platform;
+    private final OkHttpClient client;
+    private final ImageMetadataStore metadataStore;
+    private final ArtworkDiskCache diskCache;
+    private final OriginalUrlCache originalUrlCache;
+    private final RunMetrics metrics;
+    private final String imageVariant;
+    // set when images are fitted to the screen, see pref_imageQuality
+    private Scaler scaler = null;
+    private int screenWidth;
+    private int screenHeight;
+    // bytes received by this fetcher, for the caller's throughput estimate
+    private final AtomicLong receivedBytes = new AtomicLong();
+    // at most one download per file key and fetcher
+    private final ConcurrentHashMap<String, String> downloadedFiles = new ConcurrentHashMap<>();
+
+    public ImageFetcher(Platform platform, OkHttpClient client, ImageMetadataStore metadataStore,
+                        ArtworkDiskCache diskCache, RunMetrics metrics, String imageVariant) {
+        this.platform = platform;
+        this.client = client;
+        this.metadataStore = metadataStore;
+        this.diskCache = diskCache;
+        this.originalUrlCache = new OriginalUrlCache(platform);
+        this.metrics = metrics;
+        this.imageVariant = imageVariant;
+    }
+
+    // Prefer the variant that covers a screen of this size in portrait
+    // orientation and shrink new originals to it.
+    public void setScreenSize(int width, int height, Scaler scaler) {
+        this.screenWidth = width;
+        this.screenHeight = height;
+        this.scaler = scaler;
+    }
+
+    public static long getResumedBytes() {
+        return resumedBytes.get();
+    }
+
+    public static long getDedupedBytes() {
+        return dedupedBytes.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    // Whether the failure points at the host: no connection, a timeout, a
+    // body that broke off or a server error.
+    public static boolean isHostFailure(IOException e) {
+        if (e instanceof StatusException) {
+            return ((StatusException) e).code >= 500;
+        }
+        return !(e instanceof MissingImageException) && !(e instanceof LocalException)
+                && !(e instanceof HostCircuitBreaker.HostUnavailableException);
+    }
+
+    // Whether trying the same illust again can't help.
+    public static boolean isPermanent(IOException e) {
+        if (e instanceof StatusException) {
+            final int code = ((StatusException) e).code;
+            return code >= 400 && code < 500;
+        }
+        return e instanceof MissingImageException;
+    }
+
+    public static String toFileUri(File file) {
+        return FILE_SCHEME + file.getAbsolutePath();
+    }
+
+    public static File toFile(String fileUri) {
+        return new File(fileUri.startsWith(FILE_SCHEME) ? fileUri.substring(FILE_SCHEME.length()) : fileUri);
+    }
+
+    // Smaller variants are kept apart from the original, so that an upgraded
+    // artwork points at another file.
+    public static String getFileKey(Illust content, String imageVariant) {
+        if (imageVariant.equals(FetchPolicy.ORIGINAL)) {
+            return content.getFileKey();
+        }
+        return content.getFileKey() + "_" + imageVariant;
+    }
+
+    // The intact cached file of the illust, without asking the server.  An
+    // original is taken over the variant of this fetcher.
+    public String getCached(Illust content) throws IOException {
+        final File file = findCachedFile(content, getFileKey(content, imageVariant));
+        if (file == null) {
+            return null;
+        }
+        diskCache.recordHit();
+        diskCache.touch(file);
+        return toFileUri(file);
+    }
+
+    private File findCachedFile(Illust content, String key) throws IOException {
+        final String originalKey = content.getFileKey();
+        final ImageMetadataStore.Entry original = getCachedEntry(originalKey);
+        if (original != null) {
+            return diskCache.getFile(original.getFileName(originalKey));
+        }
+        if (key.equals(originalKey)) {
+            return null;
+        }
+        final ImageMetadataStore.Entry cached = getCachedEntry(key);
+        return cached != null ? diskCache.getFile(cached.getFileName(key)) : null;
+    }
+
+    // The URL the image of the illust will most likely be downloaded from.
+    public String getImageUrl(Illust content) {
+        if (content.isOldType()) {
+            final String orig = originalUrlCache.get(content.id);
+            return orig != null ? orig : content.url;
+        }
+        final List<String> urls = imageVariant.equals(FetchPolicy.ORIGINAL)
+                ? ImageVariants.getOriginalFirst(content)
+                : ImageVariants.getPreferring(content, imageVariant);
+        return urls.isEmpty() ? content.url : urls.get(0);
+    }
+
+    private Response findOriginalImageResponseFromOldType(Illust content,
+                                                          ImageMetadataStore.Entry cached,
+                                                          ImageMetadataStore.Entry partial)
+            throws IOException {
+        String imageUri = content.url;
+        if (imageUri == null) {
+            throw new MissingImageException("Invalid URL");
+        }
+
+        String orig = originalUrlCache.get(content.id);
+        if (orig != null) {
+            Response res = sendGetRequest(orig, PixivArtSourceDefines.PIXIV_HOST, cached, partial);
+            if (res.code() == 200 || res.code() == 206 || res.code() == 304) {
+                RunMetrics.Stage stage = metrics.begin("probe");
+                stage.cacheHit();
+                stage.end();
+                return res;
+            }
+            // the original was replaced with another format
+            res.close();
+            originalUrlCache.remove(content.id);
+        }
+
+        final String[] candidates = OriginalImageUrls.getCandidates(imageUri);
+        if (candidates == null) {
+            throw new MissingImageException("Unmatched URL pattern: " + imageUri);
+        }
+        orig = probeOriginalUrl(candidates);
+        if (orig == null) {
+            throw new MissingImageException("Couldn't find original image: " + imageUri);
+        }
+        originalUrlCache.put(content.id, orig);
+        return sendGetRequest(orig, PixivArtSourceDefines.PIXIV_HOST, cached, partial);
+    }
+
+    // Sends a HEAD request for every candidate at once and returns the most
+    // preferred one that exists.  Throws if none was found but some probe got
+    // no answer.
+    private String probeOriginalUrl(final String[] candidates) throws IOException {
+        final boolean[] found = new boolean[candidates.length];
+        final boolean[] answered = new boolean[candidates.length];
+        final CountDownLatch latch = new CountDownLatch(candidates.length);
+        final List<Call> calls = new ArrayList<>();
+        for (int i = 0; i < candidates.length; i++) {
+            final int index = i;
+            JsonObject urlInfo = new JsonObject();
+            urlInfo.add("url", candidates[i]);
+            urlInfo.add("referer", PixivArtSourceDefines.PIXIV_HOST);
+            platform.log(LOG_TAG, "Probe: " + candidates[i]);
+            final RunMetrics.Stage stage = metrics.begin("probe");
+            Call call = client.newCall(buildGetRequest(urlInfo).head().build());
+            calls.add(call);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    stage.fail();
+                    latch.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    synchronized (found) {
+                        found[index] = response.isSuccessful();
+                        answered[index] = true;
+                    }
+                    response.close();
+                    stage.end();
+                    latch.countDown();
+                }
+            });
+        }
+        try {
+            if (!latch.await(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                platform.log(LOG_TAG, "suffix probes timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Call call : calls) {
+            call.cancel();
+        }
+        synchronized (found) {
+            for (int i = 0; i < candidates.length; i++) {
+                if (found[i]) {
+                    return candidates[i];
+                }
+            }
+            for (boolean probed : answered) {
+                if (!probed) {
+                    throw new IOException("suffix probes failed");
+                }
+            }
+        }
+        return null;
+    }
+
+    private Response getOriginalImageResponse(Illust content, String referer,
+                                              ImageMetadataStore.Entry cached,
+                                              ImageMetadataStore.Entry partial)
+            throws IOException {
+        if (content.isOldType()) {
+            if (!imageVariant.equals(FetchPolicy.ORIGINAL)) {
+                final Response res = findMasterImageResponse(content, cached, partial);
+                if (res != null) {
+                    return res;
+                }
+            }
+            return findOriginalImageResponseFromOldType(content, cached, partial);
+        }
+        final List<String> urls;
+        if (!imageVariant.equals(FetchPolicy.ORIGINAL)) {
+            urls = ImageVariants.getPreferring(content, imageVariant);
+        } else if (scaler != null) {
+            urls = ImageVariants.getForScreen(content, screenWidth, screenHeight);
+        } else {
+            urls = ImageVariants.getOriginalFirst(content);
+        }
+        IOException lastError = new MissingImageException("Couldn't find image groups");
+        for (String url : urls) {
+            try {
+                return sendGetRequest(url, referer, cached, partial);
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    // ranking.php has no variants, but the thumbnail's 1200px master image
+    // takes the place of both large and medium.
+    private Response findMasterImageResponse(Illust content,
+                                             ImageMetadataStore.Entry cached,
+                                             ImageMetadataStore.Entry partial) {
+        final String master = content.url == null ? null : OriginalImageUrls.getMasterUrl(content.url);
+        if (master == null) {
+            return null;
+        }
+        try {
+            final Response res = sendGetRequest(master, PixivArtSourceDefines.PIXIV_HOST, cached, partial);
+            if (res.code() == 200 || res.code() == 206 || res.code() == 304) {
+                return res;
+            }
+            res.close();
+        } catch (IOException e) {
+            platform.log(LOG_TAG, e.toString());
+        }
+        return null;
+    }
+
+    // The cached file without revalidating it, or else the downloaded one.
+    public String fetch(Illust content, String referer) throws IOException {
+        final String key = getFileKey(content, imageVariant);
+        final DownloadLock lock = acquireDownloadLock(key);
+        try {
+            synchronized (lock) {
+                final String cached = getCached(content);
+                if (cached != null) {
+                    return cached;
+                }
+                return download(content, referer);
+            }
+        } finally {
+            releaseDownloadLock(key, lock);
+        }
+    }
+
+    public String download(final Illust content, final String referer) throws IOException {
+        final String key = getFileKey(content, imageVariant);
+        final DownloadLock lock = acquireDownloadLock(key);
+        try {
+            synchronized (lock) {
+                final RunMetrics.Stage stage = metrics.begin("download");
+                final String downloaded = downloadedFiles.get(key);
+                if (downloaded != null) {
+                    stage.cacheHit();
+                    stage.end();
+                    return downloaded;
+                }
+                try {
+                    final String fileUri = fetchOriginalImage(content, key, referer, stage);
+                    downloadedFiles.put(key, fileUri);
+                    stage.end();
+                    return fileUri;
+                } catch (IOException e) {
+                    stage.fail();
+                    throw e;
+                }
+            }
+        } finally {
+            releaseDownloadLock(key, lock);
+        }
+    }
+
+    private static DownloadLock acquireDownloadLock(String key) {
+        synchronized (downloadLocks) {
+            DownloadLock lock = downloadLocks.get(key);
+            if (lock == null) {
+                lock = new DownloadLock();
+                downloadLocks.put(key, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    // Forgets the lock once nobody holds or waits for it, so the map doesn't
+    // keep one entry per file key for the life of the process.
+    private static void releaseDownloadLock(String key, DownloadLock lock) {
+        synchronized (downloadLocks) {
+            if (--lock.users == 0) {
+                downloadLocks.remove(key);
+            }
+        }
+    }
+
+    private String fetchOriginalImage(final Illust content,
+                                   final String key,
+                                   final String referer,
+                                   final RunMetrics.Stage stage) throws IOException {
+        final File keyFile = diskCache.getFile(key);
+        final File partialFile = diskCache.getFile(key + PARTIAL_SUFFIX);
+
+        if (!imageVariant.equals(FetchPolicy.ORIGINAL)) {
+            // whatever we have is at least as good, and revalidating isn't
+            // worth it on a slow or metered network
+            final File file = findCachedFile(content, key);
+            if (file != null) {
+                stage.cacheHit();
+                diskCache.recordHit();
+                diskCache.touch(file);
+                return toFileUri(file);
+            }
+        }
+        final ImageMetadataStore.Entry cached = getCachedEntry(key);
+        final File originalFile = cached != null ? diskCache.getFile(cached.getFileName(key)) : keyFile;
+        ImageMetadataStore.Entry partial = metadataStore.get(partialFile.getName());
+        if (partial != null) {
+            partial.length = partialFile.length();
+        }
+
+        Response resp = getOriginalImageResponse(content, referer, cached, partial);
+        if (resp.code() == 304 && cached != null) {
+            platform.log(LOG_TAG, "not modified: " + originalFile.getAbsolutePath());
+            resp.close();
+            stage.cacheHit();
+            diskCache.recordHit();
+            diskCache.touch(originalFile);
+            return toFileUri(originalFile);
+        }
+        if (originalFile.exists() && !resp.isSuccessful()) {
+            platform.log(LOG_TAG, "download fault & but already have the file: " + originalFile.getAbsolutePath());
+            resp.close();
+            stage.cacheHit();
+            diskCache.recordHit();
+            diskCache.touch(originalFile);
+            return toFileUri(originalFile);
+        }
+        diskCache.recordMiss();
+
+        if (!resp.isSuccessful()) {
+            resp.close();
+            throw new StatusException(resp.code());
+        }
+
+        final boolean resuming = partial != null && resp.code() == 206
+                && isContentRangeFrom(resp.header("Content-Range"), partial.length);
+        if (resp.code() == 206 && !resuming) {
+            resp.close();
+            partialFile.delete();
+            metadataStore.remove(partialFile.getName());
+            throw new LocalException("Unexpected partial content: " + resp.header("Content-Range"));
+        }
+        if (resuming) {
+            resumedBytes.addAndGet(partial.length);
+            stage.retry();
+            platform.log(LOG_TAG, "resume from " + partial.length + " bytes: " + partialFile.getAbsolutePath());
+        } else {
+            partial = new ImageMetadataStore.Entry();
+            partial.url = resp.request().url().toString();
+            partial.etag = resp.header("ETag");
+            partial.lastModified = resp.header("Last-Modified");
+            partial.length = 0;
+            if (partial.etag != null || partial.lastModified != null) {
+                metadataStore.put(partialFile.getName(), partial);
+            } else {
+                // without a validator we couldn't tell a stale part from a good one
+                metadataStore.remove(partialFile.getName());
+            }
+        }
+
+        final Sink fileSink = resuming ? Okio.appendingSink(partialFile) : Okio.sink(partialFile);
+        StreamCopier.Result copied = null;
+        try {
+            copied = StreamCopier.copy(resp.body().source(), fileSink);
+        } catch (IOException e) {
+            platform.log(LOG_TAG, e.toString());
+        } finally {
+            resp.close();
+        }
+        final boolean failed = copied == null;
+        // what reached the file, including the part of a broken body
+        final long received = partialFile.length() - (resuming ? partial.length : 0);
+        stage.addBytes(received);
+        receivedBytes.addAndGet(received);
+        platform.log(LOG_TAG, "received " + received + " bytes"
+                + (resuming ? " after " + partial.length + " resumed bytes" : "")
+                + ": " + partialFile.getAbsolutePath());
+        if (failed) {
+            if (metadataStore.get(partialFile.getName()) == null) {
+                partialFile.delete();
+            } else {
+                platform.log(LOG_TAG, "keep " + partialFile.length() + " bytes to resume: "
+                        + partialFile.getAbsolutePath());
+            }
+            throw new IOException("download failed: " + keyFile.getAbsolutePath());
+        }
+
+        // the body is complete, and a scaled part couldn't be resumed anyway
+        metadataStore.remove(partialFile.getName());
+        boolean scaled = false;
+        if (scaler != null) {
+            try {
+                scaled = scaler.downsample(partialFile, screenWidth, screenHeight);
+            } catch (IOException e) {
+                // the original is kept instead
+                platform.log(LOG_TAG, e.toString());
+            }
+        }
+
+        // nobody sees the file until it is complete and scaled
+        if (!partialFile.renameTo(keyFile)) {
+            partialFile.delete();
+            throw new LocalException("Couldn't move into place: " + keyFile.getAbsolutePath());
+        }
+
+        ImageMetadataStore.Entry entry = new ImageMetadataStore.Entry();
+        entry.url = partial.url;
+        entry.etag = partial.etag;
+        entry.lastModified = partial.lastModified;
+        // the hash of the bytes we keep: a resumed download has to cover the
+        // part we already had, and a scaled one is no longer the body
+        entry.sha1 = resuming || scaled ? StreamCopier.sha1(keyFile) : copied.sha1;
+
+        File file = keyFile;
+        final String sharedName = findIdenticalFile(key, entry.sha1);
+        if (sharedName != null) {
+            file = diskCache.getFile(sharedName);
+            dedupedBytes.addAndGet(keyFile.length());
+            platform.log(LOG_TAG, "same content as " + sharedName + ": " + keyFile.getAbsolutePath());
+            keyFile.delete();
+            entry.file = sharedName;
+            diskCache.touch(file);
+        } else {
+            metadataStore.putHash(entry.sha1, key);
+        }
+        // the length of the file we keep, which differs from the body once scaled
+        entry.length = file.length();
+        metadataStore.put(key, entry);
+
+        platform.log(LOG_TAG, "cache file path: " + file.getAbsolutePath());
+        return toFileUri(file);
+    }
+
+    // The validators of the file holding this illust, if that file is still
+    // intact.
+    private ImageMetadataStore.Entry getCachedEntry(String key) throws IOException {
+        final ImageMetadataStore.Entry entry = metadataStore.get(key);
+        if (entry == null) {
+            return null;
+        }
+        // only revalidate when the file on disk is the one the validators describe
+        final File file = diskCache.getFile(entry.getFileName(key));
+        if (!file.exists() || file.length() != entry.length) {
+            metadataStore.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    // The name of an intact cache file of another key with the same content.
+    private String findIdenticalFile(String key, String sha1) throws IOException {
+        final String other = metadataStore.findByHash(sha1);
+        if (other == null || other.equals(key)) {
+            return null;
+        }
+        final ImageMetadataStore.Entry entry = metadataStore.get(other);
+        if (entry == null || !sha1.equals(entry.sha1)) {
+            return null;
+        }
+        final String name = entry.getFileName(other);
+        final File file = diskCache.getFile(name);
+        if (!file.exists() || file.length() != entry.length) {
+            return null;
+        }
+        return name;
+    }
+
+    // Content-Range: bytes 1000-4999/5000
+    private static boolean isContentRangeFrom(String contentRange, long offset) {
+        return contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+    }
+
+    // `validators` revalidates a complete cached file, `partial` resumes an
+    // interrupted download; either only applies to the URL it was taken from.
+    private Response sendGetRequest(String url, String referer,
+                                    ImageMetadataStore.Entry validators,
+                                    ImageMetadataStore.Entry partial) throws IOException {
+        JsonObject obj = new JsonObject();
+        obj.add("url", url);
+        if (referer != null) {
+            obj.add("referer", referer);
+        }
+        if (validators != null && validators.url != null && !validators.url.equals(url)) {
+            // the cached file came from another variant
+            validators = null;
+        }
+        if (partial != null && url.equals(partial.url) && partial.length > 0) {
+            String ifRange = partial.etag != null ? partial.etag : partial.lastModified;
+            if (ifRange != null) {
+                obj.add("range_from", partial.length);
+                obj.add("if_range", ifRange);
+                validators = null;
+            }
+        }
+        if (validators != null && validators.etag != null) {
+            obj.add("if_none_match", validators.etag);
+        }
+        if (validators != null && validators.lastModified != null) {
+            obj.add("if_modified_since", validators.lastModified);
+        }
+        return send(obj);
+    }
+
+    private Response send(JsonObject urlInfo) throws IOException {
+        platform.log(LOG_TAG, "Request: " + urlInfo.getString("url", ""));
+        return client.newCall(buildGetRequest(urlInfo).build()).execute();
+    }
+
+    // Images are served to browsers; they need neither the app headers nor
+    // the access token.
+    private Request.Builder buildGetRequest(JsonObject urlInfo) {
+        Request.Builder builder = new Request.Builder()
+                .addHeader("User-Agent", PixivArtSourceDefines.BROWSER_USER_AGENT)
+                .url(urlInfo.getString("url", ""));
+        String referer = urlInfo.getString("referer", null);
+        if (referer != null) {
+            builder.addHeader("Referer", referer);
+        }
+        String ifNoneMatch = urlInfo.getString("if_none_match", null);
+        if (ifNoneMatch != null) {
+            builder.addHeader("If-None-Match", ifNoneMatch);
+        }
+        String ifModifiedSince = urlInfo.getString("if_modified_since", null);
+        if (ifModifiedSince != null) {
+            builder.addHeader("If-Modified-Since", ifModifiedSince);
+        }
+        long rangeFrom = urlInfo.getLong("range_from", 0);
+        if (rangeFrom > 0) {
+            builder.addHeader("Range", "bytes=" + rangeFrom + "-");
+            builder.addHeader("If-Range", urlInfo.getString("if_range", ""));
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,114 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.ParseException;
+
+// Persistent index of HTTP validators for the cached image files, keyed by
+// file key.  It lets the worker revalidate a cached file with
+// If-None-Match / If-Modified-Since instead of downloading it again, and
+// finds byte-identical files by their SHA-1.
+public class ImageMetadataStore {
+    private static final String PREFERENCES_NAME = "image_metadata";
+    private static final String HASHES_PREFERENCES_NAME = "image_hashes";
+
+    public static class Entry {
+        public String url;
+        public String etag;
+        public String lastModified;
+        public long length;
+        public String sha1;
+        // name of the cache file holding the bytes when another key owns it
+        public String file;
+
+        public String getFileName(String key) {
+            return file != null ? file : key;
+        }
+
+        JsonObject toJson() {
+            JsonObject obj = new JsonObject();
+            addIfPresent(obj, "url", url);
+            addIfPresent(obj, "etag", etag);
+            addIfPresent(obj, "last_modified", lastModified);
+            obj.add("length", length);
+            addIfPresent(obj, "sha1", sha1);
+            addIfPresent(obj, "file", file);
+            return obj;
+        }
+
+        private static void addIfPresent(JsonObject obj, String name, String value) {
+            // minimal-json turns null into a JSON null, which getString() can't read back
+            if (value != null) {
+                obj.add(name, value);
+            }
+        }
+
+        static Entry fromJson(JsonObject obj) {
+            Entry entry = new Entry();
+            entry.url = obj.getString("url", null);
+            entry.etag = obj.getString("etag", null);
+            entry.lastModified = obj.getString("last_modified", null);
+            entry.length = obj.getLong("length", -1);
+            entry.sha1 = obj.getString("sha1", null);
+            entry.file = obj.getString("file", null);
+            return entry;
+        }
+    }
+
+    private final KeyValueStore preferences;
+    private final KeyValueStore hashes;
+
+    public ImageMetadataStore(Platform platform) {
+        this.preferences = platform.getStore(PREFERENCES_NAME);
+        this.hashes = platform.getStore(HASHES_PREFERENCES_NAME);
+    }
+
+    public Entry get(String token) {
+        String value = preferences.getString(token, null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Entry.fromJson(Json.parse(value).asObject());
+        } catch (ParseException | UnsupportedOperationException e) {
+            remove(token);
+            return null;
+        }
+    }
+
+    public void put(String token, Entry entry) {
+        preferences.edit().putString(token, entry.toJson().toString()).apply();
+    }
+
+    // Also drops the hash row that points at the entry, so the hash index
+    // shrinks with the cache.
+    public void remove(String token) {
+        final String sha1 = getSha1(token);
+        preferences.edit().remove(token).apply();
+        if (sha1 != null && token.equals(hashes.getString(sha1, null))) {
+            hashes.edit().remove(sha1).apply();
+        }
+    }
+
+    private String getSha1(String token) {
+        final String value = preferences.getString(token, null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Json.parse(value).asObject().getString("sha1", null);
+        } catch (ParseException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    // The key whose entry last recorded this content hash.  The caller has to
+    // check that the entry and its file are still there.
+    public String findByHash(String sha1) {
+        return hashes.getString(sha1, null);
+    }
+
+    public void putHash(String sha1, String key) {
+        hashes.edit().putString(sha1, key).apply();
+    }
+}
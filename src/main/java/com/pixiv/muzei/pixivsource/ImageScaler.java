@@ -0,0 +1,92 @@
+package com.pixiv.muzei.pixivsource;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Shrinks a downloaded image in place so that it just covers the screen.
+public class ImageScaler {
+    private static final String LOG_TAG = "muzei.ImageScaler";
+    private static final int JPEG_QUALITY = 90;
+
+    private ImageScaler() {
+    }
+
+    // Returns true if the file was rewritten.
+    public static boolean downsample(File file, int screenWidth, int screenHeight) throws IOException {
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return false;
+        }
+        // keep the format, so a PNG keeps its transparency
+        final Bitmap.CompressFormat format = getFormat(bounds.outMimeType);
+        if (format == null) {
+            return false;
+        }
+
+        // scale at which the image still fills the screen when center-cropped
+        final double scale = Math.max(
+                (double) screenWidth / bounds.outWidth, (double) screenHeight / bounds.outHeight
+        );
+        if (scale >= 1.0) {
+            return false;
+        }
+        final int targetWidth = (int) Math.ceil(bounds.outWidth * scale);
+        final int targetHeight = (int) Math.ceil(bounds.outHeight * scale);
+
+        // decode at the largest power of two that keeps it above the target,
+        // so the full-size bitmap never has to fit in memory
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (bounds.outWidth / (options.inSampleSize * 2) >= targetWidth
+                && bounds.outHeight / (options.inSampleSize * 2) >= targetHeight) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (bitmap == null) {
+            return false;
+        }
+        if (bitmap.getWidth() > targetWidth) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth, targetHeight, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+
+        final File tempFile = new File(file.getPath() + ".scaling");
+        final FileOutputStream stream = new FileOutputStream(tempFile);
+        boolean written;
+        try {
+            written = bitmap.compress(format, JPEG_QUALITY, stream);
+        } finally {
+            stream.close();
+            bitmap.recycle();
+        }
+        if (!written || !tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Couldn't write scaled image: " + file.getAbsolutePath());
+        }
+        Log.d(LOG_TAG, "scaled " + bounds.outWidth + "x" + bounds.outHeight + " to "
+                + targetWidth + "x" + targetHeight + ": " + file.getAbsolutePath());
+        return true;
+    }
+
+    // null for formats we don't write, such as GIF
+    private static Bitmap.CompressFormat getFormat(String mimeType) {
+        if ("image/jpeg".equals(mimeType)) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        if ("image/png".equals(mimeType)) {
+            // lossless, the quality is ignored
+            return Bitmap.CompressFormat.PNG;
+        }
+        return null;
+    }
+}
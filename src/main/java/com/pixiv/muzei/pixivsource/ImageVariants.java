@@ -0,0 +1,86 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Picks which of an illust's image URLs to download.
+public class ImageVariants {
+    // bounding boxes of the resized variants served by app-api
+    // e.g. https://i.pximg.net/c/600x1200_90/img-master/...
+    private static final int LARGE_WIDTH = 600;
+    private static final int LARGE_HEIGHT = 1200;
+    // e.g. https://i.pximg.net/c/540x540_70/img-master/...
+    private static final int MEDIUM_WIDTH = 540;
+    private static final int MEDIUM_HEIGHT = 540;
+
+    private ImageVariants() {
+    }
+
+    // URLs to try, best quality first.
+    public static List<String> getOriginalFirst(Illust illust) {
+        List<String> urls = new ArrayList<>(3);
+        addIfPresent(urls, illust.originalUrl);
+        addIfPresent(urls, illust.largeUrl);
+        addIfPresent(urls, illust.mediumUrl);
+        return urls;
+    }
+
+    // URLs to try, starting with the given variant and going down in size,
+    // then up again when none of the smaller ones is there.
+    public static List<String> getPreferring(Illust illust, String variant) {
+        List<String> urls = new ArrayList<>(3);
+        if (variant.equals(FetchPolicy.MEDIUM)) {
+            addIfPresent(urls, illust.mediumUrl);
+            addIfPresent(urls, illust.largeUrl);
+        } else if (variant.equals(FetchPolicy.LARGE)) {
+            addIfPresent(urls, illust.largeUrl);
+            addIfPresent(urls, illust.mediumUrl);
+        }
+        for (String url : getOriginalFirst(illust)) {
+            if (!urls.contains(url)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    // URLs to try, starting with the smallest variant that still covers a
+    // screen of the given size.  Falls back to the original when the illust
+    // size is unknown or no resized variant is big enough.
+    public static List<String> getForScreen(Illust illust, int screenWidth, int screenHeight) {
+        List<String> urls = new ArrayList<>(3);
+        if (illust.width > 0 && illust.height > 0) {
+            if (covers(illust, MEDIUM_WIDTH, MEDIUM_HEIGHT, screenWidth, screenHeight)) {
+                addIfPresent(urls, illust.mediumUrl);
+            }
+            if (covers(illust, LARGE_WIDTH, LARGE_HEIGHT, screenWidth, screenHeight)) {
+                addIfPresent(urls, illust.largeUrl);
+            }
+        }
+        for (String url : getOriginalFirst(illust)) {
+            if (!urls.contains(url)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    // Whether the illust shrunk into the box is still large enough to fill
+    // the screen when center-cropped.
+    public static boolean covers(Illust illust, int boxWidth, int boxHeight,
+                                 int screenWidth, int screenHeight) {
+        final double fit = Math.min(1.0, Math.min(
+                (double) boxWidth / illust.width, (double) boxHeight / illust.height
+        ));
+        final double required = Math.max(
+                (double) screenWidth / illust.width, (double) screenHeight / illust.height
+        );
+        return fit >= required;
+    }
+
+    private static void addIfPresent(List<String> urls, String url) {
+        if (url != null) {
+            urls.add(url);
+        }
+    }
+}
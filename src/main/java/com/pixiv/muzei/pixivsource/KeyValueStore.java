@@ -0,0 +1,33 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.util.Set;
+
+// The part of SharedPreferences the stores use, so that they don't depend on
+// the Android framework.  Values keep the types SharedPreferences saved them
+// with.
+public interface KeyValueStore {
+    String getString(String key, String defaultValue);
+
+    long getLong(String key, long defaultValue);
+
+    float getFloat(String key, float defaultValue);
+
+    // A snapshot of the keys, e.g. to prune the store.
+    Set<String> getKeys();
+
+    Editor edit();
+
+    interface Editor {
+        Editor putString(String key, String value);
+
+        Editor putLong(String key, long value);
+
+        Editor putFloat(String key, float value);
+
+        Editor remove(String key);
+
+        Editor clear();
+
+        void apply();
+    }
+}
@@ -0,0 +1,48 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Guesses the original image URLs of a ranking.php item from its thumbnail.
+public class OriginalImageUrls {
+    // input: https://i.pximg.net/c/240x480/img-master/img/2017/10/29/00/00/01/65636164_p0_master1200.jpg
+    // original: https://i.pximg.net/img-original/img/2017/10/29/00/00/01/65636164_p0.png
+    private static final Pattern IMAGE_URI_PATTERN = Pattern.compile(
+            "^(https?://.+?/)c/[0-9]+x[0-9]+/img-master(/.+)_master.+$"
+    );
+
+    // in order of preference
+    private static final String[] IMAGE_SUFFIXS = {
+            ".png",
+            ".jpg",
+            ".gif",
+    };
+
+    private OriginalImageUrls() {
+    }
+
+    // The 1200px master image the thumbnail was made from, the counterpart of
+    // the large variant of app-api, or null for an unexpected URL.
+    // e.g. https://i.pximg.net/img-master/img/2017/10/29/00/00/01/65636164_p0_master1200.jpg
+    public static String getMasterUrl(String thumbnailUrl) {
+        final Matcher m = IMAGE_URI_PATTERN.matcher(thumbnailUrl);
+        if (!m.matches()) {
+            return null;
+        }
+        return m.group(1) + "img-master" + m.group(2) + "_master1200.jpg";
+    }
+
+    // Returns null if the thumbnail URL doesn't have the expected shape.
+    public static String[] getCandidates(String thumbnailUrl) {
+        final Matcher m = IMAGE_URI_PATTERN.matcher(thumbnailUrl);
+        if (!m.matches()) {
+            return null;
+        }
+        final String prefix = m.group(1) + "img-original" + m.group(2);
+        final String[] candidates = new String[IMAGE_SUFFIXS.length];
+        for (int i = 0; i < IMAGE_SUFFIXS.length; i++) {
+            candidates[i] = prefix + IMAGE_SUFFIXS[i];
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,55 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.util.Set;
+
+// Remembers which original URL a ranking.php illust resolved to, so later
+// refreshes don't have to probe the suffixes again.
+public class OriginalUrlCache {
+    private static final String PREFERENCES_NAME = "original_urls";
+
+    private final KeyValueStore preferences;
+
+    public OriginalUrlCache(Platform platform) {
+        this.preferences = platform.getStore(PREFERENCES_NAME);
+    }
+
+    public String get(int illustId) {
+        return preferences.getString(String.valueOf(illustId), null);
+    }
+
+    public void put(int illustId, String url) {
+        preferences.edit().putString(String.valueOf(illustId), url).apply();
+    }
+
+    public void remove(int illustId) {
+        preferences.edit().remove(String.valueOf(illustId)).apply();
+    }
+
+    // Forgets the illusts that left the feed and whose original is no longer
+    // in the disk cache, so the store doesn't keep every ranking ever seen.
+    // Such an original has to be downloaded again anyway, next to which the
+    // probes are cheap.
+    public int prune(Set<Integer> feedIds, ImageMetadataStore metadataStore) {
+        final KeyValueStore.Editor editor = preferences.edit();
+        int removed = 0;
+        for (String key : preferences.getKeys()) {
+            final int illustId;
+            try {
+                illustId = Integer.parseInt(key, 10);
+            } catch (NumberFormatException e) {
+                editor.remove(key);
+                removed++;
+                continue;
+            }
+            if (!feedIds.contains(illustId)
+                    && metadataStore.get(Illust.getFileKey(illustId)) == null) {
+                editor.remove(key);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            editor.apply();
+        }
+        return removed;
+    }
+}
@@ -1,10 +1,109 @@
 package com.pixiv.muzei.pixivsource;
 
+import android.content.Context;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.apps.muzei.api.provider.Artwork;
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider;
+import com.google.android.apps.muzei.api.provider.ProviderContract;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PixivArtProvider extends MuzeiArtProvider {
+    private static final String LOG_TAG = "muzei.PixivArtProvider";
+    // artworks after the opened one whose images are fetched ahead
+    private static final int PREFETCH_COUNT = 2;
+
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onLoadRequested(boolean initial) {
-        PixivArtWorker.enqueLoad();
+        PixivArtWorker.enqueLoad(getContext());
+        if (initial) {
+            PixivArtWorker.schedulePeriodicLoad(getContext(), false);
+        }
+    }
+
+    // Artworks published in lazy mode point at the remote image; download it
+    // into the artwork cache the first time Muzei opens one.
+    @NonNull
+    @Override
+    protected InputStream openFile(@NonNull Artwork artwork) throws IOException {
+        final ArtworkSource source = ArtworkSource.fromMetadata(artwork.getMetadata());
+        if (source == null || !isRemote(artwork)) {
+            return super.openFile(artwork);
+        }
+        final String fileUri = fetch(source);
+        prefetchAfter(artwork);
+        return new FileInputStream(ImageFetcher.toFile(fileUri));
+    }
+
+    private String fetch(ArtworkSource source) throws IOException {
+        final Context context = getContext();
+        final AndroidPlatform platform = new AndroidPlatform(context);
+        final ImageMetadataStore metadataStore = new ImageMetadataStore(platform);
+        final ImageFetcher fetcher = platform.newImageFetcher(metadataStore,
+                new ArtworkDiskCache(platform, metadataStore), RunMetrics.disabled(), source.imageVariant);
+        // the image of a published illust doesn't change, don't revalidate
+        final long begin = System.currentTimeMillis();
+        final String fileUri = fetcher.fetch(source.illust, source.referer);
+        new ThroughputEstimator(platform).record(isMetered(context),
+                fetcher.getReceivedBytes(), System.currentTimeMillis() - begin);
+        return fileUri;
+    }
+
+    // Muzei moves on in _id order, so the following rows are shown next.
+    private void prefetchAfter(Artwork artwork) {
+        final Uri contentUri = ProviderContract.getProviderClient(getContext(), PixivArtProvider.class)
+                .getContentUri();
+        final Cursor cursor = query(contentUri, null, BaseColumns._ID + " > ?",
+                new String[]{String.valueOf(artwork.getId())}, BaseColumns._ID);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            int count = 0;
+            while (count < PREFETCH_COUNT && cursor.moveToNext()) {
+                final Artwork nextArtwork = Artwork.fromCursor(cursor);
+                final ArtworkSource next = ArtworkSource.fromMetadata(nextArtwork.getMetadata());
+                if (next == null || !isRemote(nextArtwork)) {
+                    continue;
+                }
+                count++;
+                prefetcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetch(next);
+                        } catch (IOException e) {
+                            Log.d(LOG_TAG, "prefetch failed: " + e);
+                        }
+                    }
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean isRemote(Artwork artwork) {
+        return artwork.getPersistentUri() != null
+                && ArtworkSource.isRemote(artwork.getPersistentUri().toString());
+    }
+
+    private static boolean isMetered(Context context) {
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager != null && connectivityManager.isActiveNetworkMetered();
     }
 }
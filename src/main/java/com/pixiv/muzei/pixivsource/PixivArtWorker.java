@@ -1,471 +1,463 @@
 package com.pixiv.muzei.pixivsource;
 
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
-import androidx.work.WorkRequest;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import com.eclipsesource.json.Json;
-import com.eclipsesource.json.JsonArray;
-import com.eclipsesource.json.JsonObject;
-import com.eclipsesource.json.JsonValue;
 import com.google.android.apps.muzei.api.provider.Artwork;
 import com.google.android.apps.muzei.api.provider.ProviderClient;
 import com.google.android.apps.muzei.api.provider.ProviderContract;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class PixivArtWorker extends Worker {
     private static final String LOG_TAG = "muzei.PixivArtWorker";
-
-    private String accessToken = null;
-    private String userId = null;
-    private boolean authorized = false;
+    private static final String UNIQUE_LOAD_NAME = "pixiv_load";
+    private static final String UNIQUE_PERIODIC_LOAD_NAME = "pixiv_periodic_load";
+    private static final String LOAD_REQUEST_PREFERENCES_NAME = "load_requests";
+    // a queued load older than this was probably dropped and isn't merged into
+    private static final long STALE_REQUEST_MILLIS = 60 * 60 * 1000;
+    // retries of one checkpoint before the outstanding downloads are given up
+    private static final int MAX_CHECKPOINT_RETRIES = 5;
+    private static final long MEGABYTE = 1024 * 1024;
+
+    // the update mode of the running load, null while none runs
+    private static final AtomicReference<String> runningMode = new AtomicReference<>();
+    // held for the whole refresh, which publishes the artworks it built over
+    // the provider's rows; ArtworkUpgradeWorker only rewrites rows outside it
+    static final ReentrantLock refreshLock = new ReentrantLock();
+
+    // shared by the runs of this process so a failing host stays backed off
+    private static final HostCircuitBreaker hostBreaker = new HostCircuitBreaker();
+
+    private RunMetrics metrics = RunMetrics.disabled();
+    private boolean metered = false;
+    private String imageVariant = FetchPolicy.ORIGINAL;
+    private boolean lazy = false;
+    private SyncCheckpoint checkpoint = null;
+
+    private final AndroidPlatform platform;
+    private final ImageMetadataStore metadataStore;
+    private final ArtworkDiskCache diskCache;
+    private final ThroughputEstimator throughput;
 
     public PixivArtWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
+        this.platform = new AndroidPlatform(context);
+        this.metadataStore = new ImageMetadataStore(platform);
+        this.diskCache = new ArtworkDiskCache(platform, metadataStore);
+        this.throughput = new ThroughputEstimator(platform);
     }
 
-    public static void enqueLoad() {
-        WorkManager manager = WorkManager.getInstance();
-        Constraints constraints = new Constraints.Builder()
-                .setRequiredNetworkType(NetworkType.CONNECTED)
+    // Requests a load unless one is already queued or running, in which case
+    // the request is merged into it.
+    public static void enqueLoad(Context context) {
+        enqueLoad(context, ExistingWorkPolicy.KEEP);
+    }
+
+    // Requests a load that supersedes the queued one, e.g. after the update
+    // mode changed.
+    public static void enqueReload(Context context) {
+        enqueLoad(context, ExistingWorkPolicy.REPLACE);
+    }
+
+    private static void enqueLoad(Context context, ExistingWorkPolicy policy) {
+        final SharedPreferences preferences = getLoadRequestPreferences(context);
+        final long now = System.currentTimeMillis();
+        final long pendingSince = preferences.getLong("pending_since", 0);
+        final SharedPreferences.Editor editor = preferences.edit()
+                .putLong("requested", preferences.getLong("requested", 0) + 1);
+        if (policy == ExistingWorkPolicy.KEEP
+                && pendingSince > 0 && now - pendingSince < STALE_REQUEST_MILLIS) {
+            editor.putLong("merged", preferences.getLong("merged", 0) + 1);
+        } else {
+            editor.putLong("pending_since", now);
+        }
+        editor.apply();
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(PixivArtWorker.class)
+                .setConstraints(getLoadConstraints(context))
                 .build();
-        WorkRequest request = new OneTimeWorkRequest.Builder(PixivArtWorker.class)
-                .setConstraints(constraints)
+        WorkManager.getInstance().enqueueUniqueWork(UNIQUE_LOAD_NAME, policy, request);
+    }
+
+    // Keeps a periodic load matching how often the feed of the update mode
+    // changes, or cancels it when pref_autoRefresh is off.  Pass replace when
+    // the mode or the switch changed.
+    public static void schedulePeriodicLoad(Context context, boolean replace) {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final WorkManager manager = WorkManager.getInstance();
+        if (!preferences.getBoolean("pref_autoRefresh", false)) {
+            manager.cancelUniqueWork(UNIQUE_PERIODIC_LOAD_NAME);
+            return;
+        }
+        final String updateMode = preferences.getString(
+                "pref_updateMode", String.valueOf(R.string.pref_updateMode_default)
+        );
+        final long hours = getRefreshIntervalHours(updateMode);
+        Log.d(LOG_TAG, "refresh " + updateMode + " every " + hours + " hours");
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(
+                PixivArtWorker.class, hours, TimeUnit.HOURS)
+                .setConstraints(getLoadConstraints(context))
                 .build();
-        manager.enqueue(request);
+        manager.enqueueUniquePeriodicWork(
+                UNIQUE_PERIODIC_LOAD_NAME,
+                replace ? ExistingPeriodicWorkPolicy.REPLACE : ExistingPeriodicWorkPolicy.KEEP,
+                request
+        );
+    }
+
+    private static long getRefreshIntervalHours(String updateMode) {
+        switch (updateMode) {
+            case "follow":
+                // new posts of followed users arrive all day
+                return 3;
+            case "mixed":
+                return 6;
+            case "bookmark":
+                return 12;
+            default:
+                // rankings are published once a day
+                return 24;
+        }
+    }
+
+    private static Constraints getLoadConstraints(Context context) {
+        final boolean unmeteredOnly = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean("pref_unmeteredOnly", false);
+        return new Constraints.Builder()
+                .setRequiredNetworkType(unmeteredOnly ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+                .build();
+    }
+
+    private static SharedPreferences getLoadRequestPreferences(Context context) {
+        return context.getSharedPreferences(LOAD_REQUEST_PREFERENCES_NAME, Context.MODE_PRIVATE);
     }
 
     @NonNull
     @Override
     public Result doWork() {
-        final JsonObject updateUriInfo = getUpdateUriInfo();
-        final JsonObject ranking;
-        final JsonArray contents;
-
-        try {
-            Response resp = sendGetRequest(updateUriInfo);
-            if (!resp.isSuccessful()) {
+        final SharedPreferences loadRequests = getLoadRequestPreferences(getApplicationContext());
+        final String updateMode = getUpdateMode();
+        // the periodic and the one-time work may overlap, and a replaced load
+        // may still be finishing
+        if (!runningMode.compareAndSet(null, updateMode)) {
+            final String current = runningMode.get();
+            if (!updateMode.equals(current)) {
+                // the running load fetches the old mode; load this one after it
+                Log.d(LOG_TAG, "a load of " + current + " is running, load " + updateMode + " later");
                 return Result.retry();
             }
+            // the running load covers this one.  Retrying would back off and
+            // use up the attempts of a resumed checkpoint.
+            Log.d(LOG_TAG, "merged into the running load");
+            loadRequests.edit()
+                    .putLong("merged", loadRequests.getLong("merged", 0) + 1)
+                    .apply();
+            return Result.success();
+        }
+        // waits for at most one row update of the upgrade
+        refreshLock.lock();
+        try {
+            metrics = isMetricsEnabled() ? RunMetrics.start(platform, updateMode) : RunMetrics.disabled();
+            final Result result = refresh(updateMode);
+            metrics.finish(result.getClass().getSimpleName().toLowerCase());
+            return result;
+        } finally {
+            loadRequests.edit()
+                    .putLong("pending_since", 0)
+                    .putLong("runs", loadRequests.getLong("runs", 0) + 1)
+                    .apply();
+            Log.d(LOG_TAG, "load requests: " + loadRequests.getLong("requested", 0)
+                    + ", merged: " + loadRequests.getLong("merged", 0)
+                    + ", runs: " + loadRequests.getLong("runs", 0));
+            refreshLock.unlock();
+            runningMode.set(null);
+        }
+    }
+
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        // the run may be cut short before it saves at the end
+        final SyncCheckpoint current = checkpoint;
+        if (current != null) {
+            current.saveIfChanged();
+        }
+    }
 
-            ranking = Json.parse(resp.body().string()).asObject();
-            contents = getContents(ranking);
+    private Result refresh(String updateMode) {
+        // the stats logged at the end cover this run only
+        PixivHttpClient.getStats().reset();
+        chooseImageVariant();
+        // the pipeline and the client's dispatcher share the per-host limit
+        final int maxRequestsPerHost = getMaxRequestsPerHost();
+        PixivHttpClient.setMaxRequestsPerHost(maxRequestsPerHost);
+        final ImageFetcher fetcher = platform.newImageFetcher(metadataStore, diskCache, metrics, imageVariant);
+        checkpoint = SyncCheckpoint.load(platform, updateMode, System.currentTimeMillis());
+        final ArtworkRefresh refresh = new ArtworkRefresh(platform, createFeedClient(), fetcher,
+                checkpoint, createFilter(), hostBreaker, metrics, imageVariant,
+                getDownloadConcurrency(), maxRequestsPerHost)
+                .setPoolSize(getPoolSize())
+                .setLazy(lazy)
+                .setMixedWeights(getMixedWeights());
+
+        final List<Illust> contents;
+        try {
+            contents = refresh.fetch(updateMode);
         } catch (IOException e) {
             Log.e(LOG_TAG, e.toString());
+            refresh.cancel();
+            checkpoint.save();
+            return Result.retry();
+        } catch (InterruptedException e) {
+            refresh.cancel();
+            checkpoint.save();
             return Result.retry();
         }
 
-        Log.d(LOG_TAG, "The number of Contents: " + contents.size());
-
         if (contents.isEmpty()) {
             Log.w(LOG_TAG, "No artworks returned from Pixiv");
+            refresh.cancel();
+            checkpoint.clear();
             return Result.failure();
         }
 
         ProviderClient client =
                 ProviderContract.getProviderClient(getApplicationContext(), PixivArtProvider.class);
 
-        ArrayList artworks = new ArrayList<Artwork>();
-        for (JsonValue item : contents) {
-            final JsonObject content = item.asObject();
-            final int illustId = getIllustId(content);
-            final int restrict = getRestrictMode(content);
+        final List<ArtworkRefresh.Prepared> results;
+        try {
+            results = refresh.await();
+        } catch (InterruptedException e) {
+            refresh.cancel();
+            checkpoint.save();
+            return Result.retry();
+        }
+        // what the concurrent downloads got through the link together; one
+        // stream alone would only see its share of it
+        throughput.record(metered, fetcher.getReceivedBytes(), refresh.getWallTimeMillis());
+
+        ArrayList<Artwork> artworks = new ArrayList<>();
+        for (ArtworkRefresh.Prepared result : results) {
+            artworks.add(buildArtwork(result));
+        }
+        final Set<String> feedTokens = new HashSet<>();
+        final Set<Integer> feedIds = new HashSet<>();
+        for (Illust content : contents) {
+            feedTokens.add(content.getToken());
+            feedIds.add(content.id);
+        }
+        final ArtworkSync sync = new ArtworkSync(getApplicationContext(), client);
+        final RunMetrics.Stage writeStage = metrics.begin("provider_write");
+        try {
+            ArtworkSync.Stats stats = sync.sync(artworks, feedTokens);
+            writeStage.end();
+            Log.d(LOG_TAG, "Artwork sync: " + stats);
+        } catch (RemoteException | OperationApplicationException e) {
+            writeStage.fail();
+            Log.e(LOG_TAG, e.toString());
+            checkpoint.save();
+            return Result.retry();
+        }
 
-            if (illustId < 0 || restrict < 0) {
+        // keep the files Muzei can still show, let the dropped ones be evicted
+        final Set<String> pinned = new HashSet<>();
+        for (Artwork artwork : sync.loadPublished().values()) {
+            final Uri persistentUri = artwork.getPersistentUri();
+            final ArtworkSource source = ArtworkSource.fromMetadata(artwork.getMetadata());
+            if (source != null && persistentUri != null && ArtworkSource.isRemote(persistentUri.toString())) {
+                // fetched by the provider, if Muzei got to it
+                pinned.add(getCachedFileName(source.illust.getFileKey()));
+                pinned.add(getCachedFileName(ImageFetcher.getFileKey(source.illust, source.imageVariant)));
                 continue;
             }
+            if (persistentUri != null && persistentUri.getLastPathSegment() != null) {
+                pinned.add(persistentUri.getLastPathSegment());
+            }
+        }
+        diskCache.setPinned(pinned);
+        diskCache.trim(getCacheMaxSize());
+        Log.d(LOG_TAG, "Original URLs forgotten with their files: "
+                + new OriginalUrlCache(platform).prune(feedIds, metadataStore));
 
-            final String token = illustId + "." + restrict;
-            // Log.d(LOG_TAG, token);
+        if (!lazy && !imageVariant.equals(FetchPolicy.ORIGINAL)) {
+            ArtworkUpgradeWorker.enqueue();
+        }
 
-            final String workUri = PixivArtSourceDefines.MEMBER_ILLUST_URL + illustId;
-            final Uri webUri = Uri.parse(workUri);
-            final Uri fileUri;
-            try {
-                fileUri = downloadOriginalImage(content, token, updateUriInfo.getString("url", ""));
-            } catch (IOException e) {
-                Log.d(LOG_TAG, e.toString());
-                continue;
-            }
+        Log.d(LOG_TAG, "HTTP stats:\n" + PixivHttpClient.getStats());
+        Log.d(LOG_TAG, "Bytes saved by resuming downloads: " + ImageFetcher.getResumedBytes());
+        Log.d(LOG_TAG, "Bytes saved by sharing identical files: " + ImageFetcher.getDedupedBytes());
 
-            final String title = content.getString("title", "");
-            final String username = getUserName(content);
-
-            final Artwork artwork = new Artwork.Builder()
-                    .title(title)
-                    .byline(username)
-                    .webUri(webUri)
-                    .persistentUri(fileUri)
-                    .token(token)
-                    .build();
-            artworks.add(artwork);
+        // what was published stays; a retry only downloads the rest
+        if (checkpoint.hasOutstanding() && getRunAttemptCount() < MAX_CHECKPOINT_RETRIES) {
+            checkpoint.save();
+            Log.d(LOG_TAG, "retry the outstanding downloads later");
+            return Result.retry();
         }
-        client.setArtwork(artworks);
+        checkpoint.clear();
         return Result.success();
     }
 
-    private boolean checkAuth() {
-        // cleanup authorization information
-        this.authorized = false;
-
+    private FeedClient createFeedClient() {
         final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        if (!preferences.getBoolean("pref_useAuth", false)) {
-            return false;
-        }
-        final String loginId = preferences.getString("pref_loginId", "");
-        final String loginPassword = preferences.getString("pref_loginPassword", "");
-        if (loginId.equals("") || loginPassword.equals("")) {
-            return false;
-        }
-
-        JsonObject data = new JsonObject();
-        data.add("get_secure_url", 1);
-        data.add("client_id", PixivArtSourceDefines.CLIENT_ID);
-        data.add("client_secret", PixivArtSourceDefines.CLIENT_SECRET);
-        // TODO: use refresh token for the security
-        data.add("grant_type", "password");
-        data.add("username", loginId);
-        data.add("password", loginPassword);
-
-        JsonObject ret;
-        try {
-            Response resp = sendPostRequest(
-                    PixivArtSourceDefines.OAUTH_URL,
-                    data,
-                    "application/x-www-form-urlencoded"
+        final FeedClient feedClient = new FeedClient(platform, PixivHttpClient.getInstance(), metrics);
+        if (preferences.getBoolean("pref_useAuth", false)) {
+            feedClient.setLogin(
+                    preferences.getString("pref_loginId", ""),
+                    preferences.getString("pref_loginPassword", "")
             );
-            ret = Json.parse(resp.body().string()).asObject();
-        } catch (IOException e) {
-            return false;
         }
-        if (ret.getBoolean("has_error", false)) {
-            return false;
-        }
-        final JsonObject tokens = ret.get("response").asObject();
-        this.accessToken = tokens.getString("access_token", null);
-        this.userId = tokens.get("user").asObject().getString("id", null);
-        this.authorized = this.accessToken != null && this.userId != null;
-        // Log.d(LOG_TAG, "auth" + this.accessToken);
-        // Log.e(LOG_TAG, "uid" + this.userId);
-        return authorized;
+        return feedClient;
     }
 
-    private JsonObject getUpdateUriInfo() {
+    private IllustFilter createFilter() {
         final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-
-        final String updateMode = preferences.getString(
-                "pref_updateMode", String.valueOf(R.string.pref_updateMode_default)
-        );
-
-        JsonObject ret = new JsonObject();
-
-        switch (updateMode) {
-            case "follow":
-                if (checkAuth()) {
-                    ret.add("use_auth_api", true);
-                    ret.add("url", PixivArtSourceDefines.FOLLOW_URL + "?restrict=public");
-                } else {
-                    ret.add("url", PixivArtSourceDefines.DAILY_RANKING_URL);
-                }
-                break;
-            case "bookmark":
-                if (checkAuth()) {
-                    ret.add("use_auth_api", true);
-                    ret.add("url", PixivArtSourceDefines.BOOKMARK_URL + "?user_id=" + this.userId + "&restrict=public");
-                } else {
-                    ret.add("url", PixivArtSourceDefines.DAILY_RANKING_URL);
-                }
-                break;
-            case "weekly_rank":
-                ret.add("url", PixivArtSourceDefines.WEEKLY_RANKING_URL);
-                break;
-            case "monthly_rank":
-                ret.add("url", PixivArtSourceDefines.MONTHLY_RANKING_URL);
-                break;
-            case "daily_rank":
-            default:
-                ret.add("url", PixivArtSourceDefines.DAILY_RANKING_URL);
-        }
-        return ret;
+        return new IllustFilter()
+                .setOrientation(preferences.getString("pref_filterOrientation", IllustFilter.ANY))
+                .setExcludedTags(preferences.getString("pref_excludedTags", ""))
+                .setExcludeSexual(preferences.getBoolean("pref_excludeSexual", false))
+                .setSinglePageOnly(preferences.getBoolean("pref_singlePageOnly", false))
+                .setExcludeUgoira(preferences.getBoolean("pref_excludeUgoira", false));
     }
 
-    private String getUserName(JsonObject content) {
-        String username = content.getString("user_name", null);
-        if (username != null) {
-            return username;
-        }
-        JsonValue user = content.get("user");
-        if (user == null) {
-            return "";
-        }
-        return user.asObject().getString("name", "");
+    private Artwork buildArtwork(ArtworkRefresh.Prepared prepared) {
+        final Illust content = prepared.source.illust;
+        final String token = content.getToken();
+        // Log.d(LOG_TAG, token);
+
+        final String workUri = PixivArtSourceDefines.MEMBER_ILLUST_URL + content.id;
+        final Uri webUri = Uri.parse(workUri);
+
+        return new Artwork.Builder()
+                .title(content.title)
+                .byline(content.userName)
+                .webUri(webUri)
+                .token(token)
+                .persistentUri(Uri.parse(prepared.persistentUri))
+                .metadata(prepared.source.toMetadata())
+                .build();
     }
 
-    private JsonArray getContents(JsonObject ranking) throws IOException {
-        JsonValue contents = ranking.get("contents");
-        if (contents != null) {
-            return contents.asArray();
-        }
-        contents = ranking.get("illusts");
-        if (contents != null) {
-            return contents.asArray();
+    private int getPoolSize() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        final String value = preferences.getString(
+                "pref_poolSize",
+                getApplicationContext().getString(R.string.pref_poolSize_default)
+        );
+        try {
+            return Integer.parseInt(value, 10);
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(getApplicationContext().getString(R.string.pref_poolSize_default), 10);
         }
-        throw new IOException("Not found contents");
     }
 
-    private int getIllustId(JsonObject content) {
-        int illustId = content.getInt("id", -1);
-        if (illustId >= 0) {
-            return illustId;
+    private int getDownloadConcurrency() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        final String value = preferences.getString(
+                "pref_downloadConcurrency",
+                getApplicationContext().getString(R.string.pref_downloadConcurrency_default)
+        );
+        try {
+            return Integer.parseInt(value, 10);
+        } catch (NumberFormatException e) {
+            return 1;
         }
-        return content.getInt("illust_id", -1);
     }
 
-    private int getRestrictMode(JsonObject content) {
-        int restrict = content.getInt("restrict", -1);
-        if (restrict >= 0) {
-            return restrict;
-        }
-        JsonValue contentType = content.get("illust_content_type");
-        if (contentType == null) {
-            return -1;
+    private int getMaxRequestsPerHost() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        final String value = preferences.getString(
+                "pref_maxRequestsPerHost",
+                getApplicationContext().getString(R.string.pref_maxRequestsPerHost_default)
+        );
+        try {
+            return Integer.parseInt(value, 10);
+        } catch (NumberFormatException e) {
+            return PixivHttpClient.DEFAULT_MAX_REQUESTS_PER_HOST;
         }
-        return contentType.asObject().getInt("sexual", -1);
     }
 
-    // input: https://i.pximg.net/c/240x480/img-master/img/2017/10/29/00/00/01/65636164_p0_master1200.jpg
-    // original: https://i.pximg.net/img-original/img/2017/10/29/00/00/01/65636164_p0.png
-    private static final Pattern IMAGE_URI_PATTERN = Pattern.compile(
-            "^(https?://.+?/)c/[0-9]+x[0-9]+/img-master(/.+)_master.+$"
-    );
-
-    private static final String[] IMAGE_SUFFIXS = {
-            ".png",
-            ".jpg",
-            ".gif",
-    };
-
-    private Response findOriginalImageResponseFromOldType(JsonObject content) throws IOException {
-        String imageUri = content.getString("url", null);
-        if (imageUri == null) {
-            throw new IOException("Invalid URL");
-        }
-        final Matcher m = IMAGE_URI_PATTERN.matcher(imageUri);
-        if (!m.matches()) {
-            throw new IOException("Unmatched URL pattern: " + imageUri);
-        }
-        final String base = m.group(1), path = m.group(2);
-        for (String suffix : IMAGE_SUFFIXS) {
-            String orig = base + "img-original" + path + suffix;
-            try {
-                Response res = sendGetRequest(orig, PixivArtSourceDefines.PIXIV_HOST);
-                if (res.code() == 200) {
-                    return res;
-                }
-            } catch (IOException e) {}
-        }
-        throw new IOException("Couldn't find original image: " + imageUri);
+    private String getUpdateMode() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        return preferences.getString(
+                "pref_updateMode", String.valueOf(R.string.pref_updateMode_default)
+        );
     }
 
-    private Response getOriginalImageResponse(JsonObject content, String referer) throws IOException {
-        JsonValue single_page = content.get("meta_single_page");
-        if (single_page == null) {
-            return findOriginalImageResponseFromOldType(content);
-        }
-        String url;
-        url = single_page.asObject().getString("original_image_url", null);
-        if (url != null) {
-            return sendGetRequest(url, referer);
-        }
-        JsonArray meta_pages = content.get("meta_pages").asArray();
-        JsonObject group = null;
-        if (!meta_pages.isEmpty()) {
-            group = meta_pages.get(0).asObject();
-        }
-        if (group == null) {
-            group = content;
-        }
-
-        JsonObject urls = group.get("image_urls").asObject();
-        if (urls == null) {
-            throw new IOException("Couldn't find image_urls");
-        }
-        for (String size : new String[]{"original", "large", "medium"}) {
-            url = urls.getString(size, null);
-            if (url != null) {
-                try {
-                    return sendGetRequest(url, referer);
-                } catch (IOException e) {}
-            }
-        }
-        throw new IOException("Couldn't find image groups");
+    // e.g. "daily_rank:2,weekly_rank:1,follow:1"
+    private String getMixedWeights() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        return preferences.getString(
+                "pref_mixedWeights",
+                getApplicationContext().getString(R.string.pref_mixedWeights_default)
+        );
     }
 
-    private Uri downloadOriginalImage(final JsonObject content,
-                                      final String token,
-                                      final String referer) throws IOException {
-        Context context = getApplicationContext();
-
-        final File originalFile;
-        try {
-            originalFile = new File(context.getCacheDir(), token);
-        } catch (NullPointerException e) {
-            // TODO
-            throw new IOException("Couldn't get cache directory");
-        }
-
-        // TODO: check with `If-Modified-Since`
-        Response resp = getOriginalImageResponse(content, referer);
-        if (originalFile.exists()) {
-            if (!resp.isSuccessful()) {
-                Log.d(LOG_TAG, "download fault & but already have the file: " + originalFile.getAbsolutePath());
-                resp.close();
-                return Uri.parse("file://" + originalFile.getAbsolutePath());
-            }
-
-            final int contentLength = Integer.parseInt(resp.header("content-length"), 10);
-            if (contentLength == originalFile.length()) {
-                Log.d(LOG_TAG, "already exists & downloaded: " + originalFile.getAbsolutePath());
-                resp.close();
-                return Uri.parse("file://" + originalFile.getAbsolutePath());
-            }
-        }
-
-        if (!resp.isSuccessful()) {
-            resp.close();
-            throw new IOException("Unsuccessful request: " + resp.code());
-        }
-
-        final FileOutputStream fileStream = new FileOutputStream(originalFile);
-        final InputStream inputStream = resp.body().byteStream();
-        boolean failed = false;
+    private long getCacheMaxSize() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        final String value = preferences.getString(
+                "pref_cacheSize", getApplicationContext().getString(R.string.pref_cacheSize_default)
+        );
         try {
-            final byte[] buffer = new byte[1024 * 50];
-            int read;
-            while ((read = inputStream.read(buffer)) > 0) {
-                fileStream.write(buffer, 0, read);
-            }
-        } catch (IOException e) {
-            failed = true;
-        } finally {
-            fileStream.close();
+            return Long.parseLong(value, 10) * MEGABYTE;
+        } catch (NumberFormatException e) {
+            return Long.parseLong(getApplicationContext().getString(R.string.pref_cacheSize_default), 10) * MEGABYTE;
         }
-        inputStream.close();
-        resp.close();
-        if (failed) {
-            originalFile.delete();
-            throw new IOException("download failed: " + originalFile.getAbsolutePath());
-        }
-        Log.d(LOG_TAG, "cache file path: " + originalFile.getAbsolutePath());
-        return Uri.parse("file://" + originalFile.getAbsolutePath());
     }
 
-    private Response sendGetRequest(String url) throws IOException {
-        return sendGetRequest(url, null);
+    private boolean isMetricsEnabled() {
+        return PreferenceManager.getDefaultSharedPreferences(getApplicationContext())
+                .getBoolean("pref_collectMetrics", false);
     }
 
-    private Response sendGetRequest(String url, String referer) throws IOException {
-        JsonObject obj = new JsonObject();
-        obj.add("url", url);
-        obj.add("referer", referer);
-        return sendGetRequest(obj);
+    private String getCachedFileName(String key) {
+        final ImageMetadataStore.Entry entry = metadataStore.get(key);
+        return entry != null ? entry.getFileName(key) : key;
     }
 
-    private Response sendGetRequest(JsonObject urlInfo) throws IOException {
-        String url = urlInfo.getString("url", "");
-
-        Log.d(LOG_TAG, "Request: " + url);
-        OkHttpClient httpClient = new OkHttpClient.Builder()
-                .connectTimeout(15, TimeUnit.SECONDS)
-                .readTimeout(10, TimeUnit.SECONDS)
-                .build();
-        Request.Builder builder = applyCommonHeaders(new Request.Builder(), urlInfo.getBoolean("use_auth_api", false))
-                .url(url);
-        String referer = urlInfo.getString("referer", null);
-        if (referer != null) {
-            builder.addHeader("Referer", referer);
-        }
-        if (this.authorized) {
-            builder.addHeader("Authorization", "Bearer " + this.accessToken);
-        }
-        return httpClient.newCall(builder.build()).execute();
-    }
-
-    private Request.Builder applyCommonHeaders(Request.Builder builder, boolean useAuthAPI) {
-        if (useAuthAPI) {
-            return builder.addHeader("User-Agent", PixivArtSourceDefines.APP_USER_AGENT)
-                    .addHeader("App-OS", PixivArtSourceDefines.APP_OS)
-                    .addHeader("App-OS-Version", PixivArtSourceDefines.APP_OS_VERSION)
-                    .addHeader("App-Version", PixivArtSourceDefines.APP_VERSION);
-        }
-        return builder.addHeader("User-Agent", PixivArtSourceDefines.BROWSER_USER_AGENT);
-    }
-
-    private Response sendPostRequest(String url, JsonObject bodyData,
-                                     String contentType) throws IOException {
-        String bodyString;
-        if (contentType.equals("application/json")) {
-            bodyString = bodyData.toString();
+    private void chooseImageVariant() {
+        final ConnectivityManager connectivityManager = (ConnectivityManager)
+                getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        metered = connectivityManager != null && connectivityManager.isActiveNetworkMetered();
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        lazy = preferences.getBoolean("pref_lazyDownload", false);
+        if (!preferences.getBoolean("pref_adaptiveQuality", true)) {
+            imageVariant = FetchPolicy.ORIGINAL;
         } else {
-            ArrayList<String> buf = new ArrayList<String>();
-            for (JsonObject.Member member : bodyData) {
-                JsonValue v = member.getValue();
-                if (v.isNumber()) {
-                    buf.add(String.format("%s=%d", member.getName(), v.asInt()));
-                } else {
-                    buf.add(String.format("%s=%s", member.getName(), v.asString()));
-                }
-            }
-            bodyString = TextUtils.join("&", buf);
+            imageVariant = FetchPolicy.choose(metered, throughput.getBytesPerSecond(metered));
         }
-        RequestBody body = RequestBody.create(
-                MediaType.parse(contentType),
-                bodyString
-        );
-        // Log.d(LOG_TAG, "data: " + bodyString);
-        return sendPostRequest(url, body);
-    }
-
-    private Response sendPostRequest(String url, RequestBody body) throws IOException {
-        Log.d(LOG_TAG, "Request: " + url);
-        OkHttpClient httpClient = new OkHttpClient.Builder()
-                .connectTimeout(15, TimeUnit.SECONDS)
-                .readTimeout(10, TimeUnit.SECONDS)
-                .build();
-
-        Request.Builder builder = applyCommonHeaders(new Request.Builder(), true)
-                .addHeader("Content-type", body.contentType().toString())
-                .post(body)
-                .url(url);
-        if (this.authorized) {
-            builder.addHeader("Authorization", "Bearer " + this.accessToken);
+        // off by default: it downloads every image twice
+        if (!lazy && imageVariant.equals(FetchPolicy.ORIGINAL)
+                && preferences.getBoolean("pref_progressiveQuality", false)) {
+            // publish the large images first, ArtworkUpgradeWorker follows up
+            // with the originals
+            imageVariant = FetchPolicy.LARGE;
         }
-        return httpClient.newCall(builder.build()).execute();
+        Log.d(LOG_TAG, "download " + imageVariant + " images (metered: " + metered
+                + ", throughput: " + throughput.getBytesPerSecond(metered) + " B/s)");
     }
 }
@@ -0,0 +1,63 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+// Process-wide HTTP client.  Every request made by the worker goes through
+// the same connection pool so that a refresh reuses the TLS connections to
+// i.pximg.net and app-api.pixiv.net instead of opening one per request.
+public class PixivHttpClient {
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    private static final HttpStats stats = new HttpStats();
+    private static OkHttpClient instance = null;
+    private static int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    private PixivHttpClient() {
+    }
+
+    public static synchronized OkHttpClient getInstance() {
+        if (instance == null) {
+            instance = newBuilder().build();
+        }
+        return instance;
+    }
+
+    // Every image comes from i.pximg.net, so this caps the parallel
+    // downloads of a refresh, see pref_maxRequestsPerHost.
+    public static synchronized void setMaxRequestsPerHost(int limit) {
+        maxRequestsPerHost = Math.max(1, limit);
+        if (instance != null) {
+            instance.dispatcher().setMaxRequestsPerHost(maxRequestsPerHost);
+        }
+    }
+
+    public static synchronized int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public static HttpStats getStats() {
+        return stats;
+    }
+
+    public static OkHttpClient.Builder newBuilder() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(getMaxRequestsPerHost());
+        return new OkHttpClient.Builder()
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(10, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(
+                        MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES
+                ))
+                .dispatcher(dispatcher)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .addNetworkInterceptor(stats);
+    }
+}
@@ -0,0 +1,19 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.File;
+
+// What the refresh needs from where it runs: named key-value stores, the
+// app's directories and a debug log.  AndroidPlatform provides them in the
+// app; the load test runs the same classes on a plain JVM.
+public interface Platform {
+    // Like Context.getSharedPreferences(name, Context.MODE_PRIVATE).
+    KeyValueStore getStore(String name);
+
+    File getCacheDir();
+
+    File getFilesDir();
+
+    void log(String tag, String message);
+
+    void warn(String tag, String message);
+}
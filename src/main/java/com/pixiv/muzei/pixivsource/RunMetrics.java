@@ -0,0 +1,246 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.ParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Per-stage timing and byte counters for one worker run.  Summaries are
+// appended to a JSON lines file in the app's files directory.  When
+// collection is off (pref_collectMetrics) every call is a no-op on a shared
+// instance.
+public class RunMetrics {
+    private static final String LOG_TAG = "muzei.RunMetrics";
+    private static final String FILE_NAME = "run_metrics.jsonl";
+    private static final int MAX_RUNS = 100;
+
+    private static final RunMetrics DISABLED = new RunMetrics(null, null);
+    private static final Stage DISABLED_STAGE = new Stage(null, null);
+
+    public static class Stage {
+        private final RunMetrics metrics;
+        private final String name;
+        private final long startedAt;
+        private long bytes = 0;
+        private int cacheHits = 0;
+        private int retries = 0;
+        private boolean failed = false;
+        private boolean ended = false;
+
+        private Stage(RunMetrics metrics, String name) {
+            this.metrics = metrics;
+            this.name = name;
+            this.startedAt = metrics == null ? 0 : System.nanoTime();
+        }
+
+        public void addBytes(long bytes) {
+            if (metrics != null && bytes > 0) {
+                this.bytes += bytes;
+            }
+        }
+
+        public void cacheHit() {
+            if (metrics != null) {
+                cacheHits++;
+            }
+        }
+
+        public void retry() {
+            if (metrics != null) {
+                retries++;
+            }
+        }
+
+        public void fail() {
+            if (metrics != null) {
+                failed = true;
+                end();
+            }
+        }
+
+        public void end() {
+            if (metrics == null || ended) {
+                return;
+            }
+            ended = true;
+            metrics.record(this, (System.nanoTime() - startedAt) / 1000000);
+        }
+    }
+
+    private static class StageStats {
+        int count;
+        int failures;
+        long totalMillis;
+        long maxMillis;
+        long bytes;
+        int cacheHits;
+        int retries;
+
+        JsonObject toJson() {
+            return new JsonObject()
+                    .add("count", count)
+                    .add("failures", failures)
+                    .add("total_ms", totalMillis)
+                    .add("max_ms", maxMillis)
+                    .add("bytes", bytes)
+                    .add("cache_hits", cacheHits)
+                    .add("retries", retries);
+        }
+    }
+
+    private final Platform platform;
+    private final String mode;
+    private final long startedAt;
+    private final Map<String, StageStats> stages = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+    private RunMetrics(Platform platform, String mode) {
+        this.platform = platform;
+        this.mode = mode;
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    public static RunMetrics start(Platform platform, String mode) {
+        return new RunMetrics(platform, mode);
+    }
+
+    public static RunMetrics disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return platform != null;
+    }
+
+    public Stage begin(String name) {
+        if (platform == null) {
+            return DISABLED_STAGE;
+        }
+        return new Stage(this, name);
+    }
+
+    private synchronized void record(Stage stage, long millis) {
+        StageStats stats = stages.get(stage.name);
+        if (stats == null) {
+            stats = new StageStats();
+            stages.put(stage.name, stats);
+        }
+        stats.count++;
+        if (stage.failed) {
+            stats.failures++;
+        }
+        stats.totalMillis += millis;
+        stats.maxMillis = Math.max(stats.maxMillis, millis);
+        stats.bytes += stage.bytes;
+        stats.cacheHits += stage.cacheHits;
+        stats.retries += stage.retries;
+    }
+
+    // Adds to a counter of this run that doesn't belong to a stage.
+    public synchronized void count(String name, long value) {
+        if (platform == null) {
+            return;
+        }
+        final Long current = counters.get(name);
+        counters.put(name, current == null ? value : current + value);
+    }
+
+    // Writes the summary of this run, keeping the last MAX_RUNS summaries.
+    public synchronized void finish(String result) {
+        if (platform == null) {
+            return;
+        }
+        final JsonObject stageSummary = new JsonObject();
+        for (Map.Entry<String, StageStats> entry : stages.entrySet()) {
+            stageSummary.add(entry.getKey(), entry.getValue().toJson());
+        }
+        final JsonObject summary = new JsonObject()
+                .add("started_at", startedAt)
+                .add("duration_ms", System.currentTimeMillis() - startedAt)
+                .add("mode", mode)
+                .add("result", result)
+                .add("stages", stageSummary);
+        if (!counters.isEmpty()) {
+            final JsonObject counterSummary = new JsonObject();
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                counterSummary.add(entry.getKey(), entry.getValue());
+            }
+            summary.add("counters", counterSummary);
+        }
+        platform.log(LOG_TAG, summary.toString());
+
+        final List<String> lines = readLines(platform);
+        lines.add(summary.toString());
+        final File file = new File(platform.getFilesDir(), FILE_NAME);
+        try {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                for (String line : lines.subList(Math.max(0, lines.size() - MAX_RUNS), lines.size())) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            platform.warn(LOG_TAG, "couldn't save run metrics: " + e);
+        }
+    }
+
+    // The most recent summaries, oldest first.
+    public static JsonArray query(Platform platform, int limit) {
+        final List<String> lines = readLines(platform);
+        final JsonArray runs = new JsonArray();
+        for (String line : lines.subList(Math.max(0, lines.size() - limit), lines.size())) {
+            try {
+                runs.add(Json.parse(line));
+            } catch (ParseException e) {
+                platform.warn(LOG_TAG, "skip broken summary: " + e.getMessage());
+            }
+        }
+        return runs;
+    }
+
+    public static String export(Platform platform) {
+        return query(platform, MAX_RUNS).toString();
+    }
+
+    private static List<String> readLines(Platform platform) {
+        final List<String> lines = new ArrayList<>();
+        final File file = new File(platform.getFilesDir(), FILE_NAME);
+        if (!file.exists()) {
+            return lines;
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8")
+            );
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        lines.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            platform.warn(LOG_TAG, "couldn't read run metrics: " + e);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,181 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Illust ids downloaded recently, with the time each was downloaded.  An
+// open addressing table of primitive ints answers lookups in constant time
+// without boxing; entries older than MAX_AGE_MILLIS count as absent and are
+// dropped when the table is saved or grows.  Saved as a small binary file.
+public class SeenHistory {
+    private static final int MAGIC = 0x53454531; // "SEE1"
+    public static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final long MINUTE = 60 * 1000;
+    private static final int MIN_CAPACITY = 256;
+
+    private final File file;
+    // 0 marks a free slot; illust ids start at 1
+    private int[] ids;
+    // minutes since the epoch, which fit an int for a few thousand years
+    private int[] seenAt;
+    private int size = 0;
+
+    private SeenHistory(File file, int capacity) {
+        this.file = file;
+        this.ids = new int[capacity];
+        this.seenAt = new int[capacity];
+    }
+
+    // An empty history if the file is missing or unreadable.
+    public static SeenHistory load(File file, long now) {
+        SeenHistory history = new SeenHistory(file, MIN_CAPACITY);
+        if (!file.exists()) {
+            return history;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return history;
+                }
+                final int count = in.readInt();
+                final int oldest = toMinutes(now - MAX_AGE_MILLIS);
+                for (int i = 0; i < count; i++) {
+                    final int id = in.readInt();
+                    final int minutes = in.readInt();
+                    if (minutes >= oldest) {
+                        history.putMinutes(id, minutes);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // keep what was read before the truncation
+        } catch (IOException e) {
+            history = new SeenHistory(file, MIN_CAPACITY);
+        }
+        return history;
+    }
+
+    public synchronized boolean contains(int id, long now) {
+        if (id <= 0) {
+            return false;
+        }
+        final int slot = find(id);
+        return ids[slot] == id && seenAt[slot] >= toMinutes(now - MAX_AGE_MILLIS);
+    }
+
+    public synchronized void put(int id, long now) {
+        if (id > 0) {
+            putMinutes(id, toMinutes(now));
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Writes the entries still within MAX_AGE_MILLIS, replacing the file at once.
+    public synchronized void save(long now) throws IOException {
+        final int oldest = toMinutes(now - MAX_AGE_MILLIS);
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != 0 && seenAt[i] >= oldest) {
+                count++;
+            }
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != 0 && seenAt[i] >= oldest) {
+                    out.writeInt(ids[i]);
+                    out.writeInt(seenAt[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't replace " + file);
+        }
+    }
+
+    private void putMinutes(int id, int minutes) {
+        int slot = find(id);
+        if (ids[slot] == id) {
+            seenAt[slot] = Math.max(seenAt[slot], minutes);
+            return;
+        }
+        // keep at most half of the slots taken so probes stay short
+        if ((size + 1) * 2 > ids.length) {
+            rehash(minutes);
+            slot = find(id);
+        }
+        ids[slot] = id;
+        seenAt[slot] = minutes;
+        size++;
+    }
+
+    // The slot holding id, or the free slot where it would go.
+    private int find(int id) {
+        final int mask = ids.length - 1;
+        int slot = mix(id) & mask;
+        while (ids[slot] != 0 && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Drops expired entries and resizes the table to what is left.
+    private void rehash(int nowMinutes) {
+        final int oldest = nowMinutes - (int) (MAX_AGE_MILLIS / MINUTE);
+        int live = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != 0 && seenAt[i] >= oldest) {
+                live++;
+            }
+        }
+        // leave room to grow before the next rehash
+        int capacity = MIN_CAPACITY;
+        while ((live + 1) * 4 > capacity) {
+            capacity *= 2;
+        }
+        final int[] oldIds = ids;
+        final int[] oldSeenAt = seenAt;
+        ids = new int[capacity];
+        seenAt = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != 0 && oldSeenAt[i] >= oldest) {
+                final int slot = find(oldIds[i]);
+                ids[slot] = oldIds[i];
+                seenAt[slot] = oldSeenAt[i];
+                size++;
+            }
+        }
+    }
+
+    // ids are sequential; spread them over the table
+    private static int mix(int id) {
+        final int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int toMinutes(long millis) {
+        return (int) (millis / MINUTE);
+    }
+}
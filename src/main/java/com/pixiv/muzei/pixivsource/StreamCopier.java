@@ -0,0 +1,49 @@
+package com.pixiv.muzei.pixivsource;
+
+import java.io.File;
+import java.io.IOException;
+
+import okio.BufferedSource;
+import okio.HashingSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+
+// Copies a response body to a file while hashing it.  okio hands the body's
+// segments over to the sink instead of copying them through a byte[] of our
+// own, and recycles the segments across downloads.
+public class StreamCopier {
+    public static class Result {
+        public final long length;
+        public final String sha1;
+
+        Result(long length, String sha1) {
+            this.length = length;
+            this.sha1 = sha1;
+        }
+    }
+
+    private StreamCopier() {
+    }
+
+    // Closes the sink.  What was written before a failure stays in it.
+    public static Result copy(BufferedSource source, Sink sink) throws IOException {
+        final HashingSink hashingSink = HashingSink.sha1(sink);
+        try {
+            final long length = source.readAll(hashingSink);
+            return new Result(length, hashingSink.hash().hex());
+        } finally {
+            hashingSink.close();
+        }
+    }
+
+    // The SHA-1 of a whole file, e.g. one completed by a resumed download.
+    public static String sha1(File file) throws IOException {
+        final Source source = Okio.source(file);
+        try {
+            return copy(Okio.buffer(source), Okio.blackhole()).sha1;
+        } finally {
+            source.close();
+        }
+    }
+}
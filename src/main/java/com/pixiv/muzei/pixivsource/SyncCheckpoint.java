@@ -0,0 +1,195 @@
+package com.pixiv.muzei.pixivsource;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.eclipsesource.json.ParseException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Progress of a refresh, saved as it goes so that a retried or interrupted
+// run continues with the outstanding downloads instead of starting over.
+// Changes are kept in memory until the caller saves, once per feed page and
+// when the run ends, since every save rewrites all items.
+// It holds the illusts taken from the feed, the file of each finished one
+// and the number of failed attempts of the others.
+public class SyncCheckpoint {
+    private static final String PREFERENCES_NAME = "sync_checkpoint";
+    private static final String KEY = "checkpoint";
+    // an older snapshot of the feed isn't worth finishing
+    private static final long MAX_AGE_MILLIS = 6 * 60 * 60 * 1000;
+    public static final int MAX_ATTEMPTS = 3;
+
+    public static class Item {
+        public final Illust illust;
+        public final String referer;
+        public int attempts = 0;
+        // set once the image is downloaded
+        public String fileUri = null;
+
+        Item(Illust illust, String referer) {
+            this.illust = illust;
+            this.referer = referer;
+        }
+
+        public boolean isDone() {
+            return fileUri != null;
+        }
+
+        public boolean isExhausted() {
+            return !isDone() && attempts >= MAX_ATTEMPTS;
+        }
+
+        JsonObject toJson() {
+            final JsonObject obj = new JsonObject()
+                    .add("illust", illust.toJson())
+                    .add("attempts", attempts);
+            if (referer != null) {
+                obj.add("referer", referer);
+            }
+            if (fileUri != null) {
+                obj.add("file", fileUri);
+            }
+            return obj;
+        }
+
+        static Item fromJson(JsonObject obj) {
+            final Item item = new Item(
+                    Illust.fromJson(obj.get("illust").asObject()),
+                    obj.getString("referer", null)
+            );
+            item.attempts = obj.getInt("attempts", 0);
+            item.fileUri = obj.getString("file", null);
+            return item;
+        }
+    }
+
+    private final KeyValueStore preferences;
+    private final String mode;
+    private final long createdAt;
+    private final Map<Integer, Item> items = new LinkedHashMap<>();
+    private boolean resumed;
+    // changed since the last save
+    private boolean dirty = false;
+
+    private SyncCheckpoint(KeyValueStore preferences, String mode, long createdAt,
+                           List<Item> items) {
+        this.preferences = preferences;
+        this.mode = mode;
+        this.createdAt = createdAt;
+        for (Item item : items) {
+            this.items.put(item.illust.id, item);
+        }
+        this.resumed = !items.isEmpty();
+    }
+
+    // The saved checkpoint of the same update mode, or an empty one.
+    public static SyncCheckpoint load(Platform platform, String mode, long now) {
+        final KeyValueStore preferences = platform.getStore(PREFERENCES_NAME);
+        final String value = preferences.getString(KEY, null);
+        if (value != null) {
+            try {
+                final JsonObject obj = Json.parse(value).asObject();
+                final long createdAt = obj.getLong("created_at", 0);
+                if (mode.equals(obj.getString("mode", null)) && now - createdAt < MAX_AGE_MILLIS) {
+                    final List<Item> items = new ArrayList<>();
+                    for (JsonValue item : obj.get("items").asArray()) {
+                        items.add(Item.fromJson(item.asObject()));
+                    }
+                    return new SyncCheckpoint(preferences, mode, createdAt, items);
+                }
+            } catch (ParseException | UnsupportedOperationException | NullPointerException e) {
+                // start over
+            }
+        }
+        return new SyncCheckpoint(preferences, mode, now, new ArrayList<Item>());
+    }
+
+    // Whether the items came from an earlier run.
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public synchronized List<Item> getItems() {
+        return new ArrayList<>(items.values());
+    }
+
+    public synchronized void add(Illust illust, String referer) {
+        if (!items.containsKey(illust.id)) {
+            items.put(illust.id, new Item(illust, referer));
+            dirty = true;
+        }
+    }
+
+    // An illust published from a file we already had.
+    public synchronized void addDone(Illust illust, String referer, String fileUri) {
+        add(illust, referer);
+        items.get(illust.id).fileUri = fileUri;
+        dirty = true;
+    }
+
+    public synchronized void markDone(int id, String fileUri) {
+        final Item item = items.get(id);
+        if (item != null) {
+            item.fileUri = fileUri;
+            dirty = true;
+        }
+    }
+
+    // A finished file that went missing is downloaded again.
+    public synchronized void markLost(int id) {
+        final Item item = items.get(id);
+        if (item != null) {
+            item.fileUri = null;
+            dirty = true;
+        }
+    }
+
+    public synchronized void markFailed(int id) {
+        final Item item = items.get(id);
+        if (item != null) {
+            item.attempts++;
+            dirty = true;
+        }
+    }
+
+    // Whether some item is neither finished nor out of attempts.
+    public synchronized boolean hasOutstanding() {
+        for (Item item : items.values()) {
+            if (!item.isDone() && !item.isExhausted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void save() {
+        final JsonArray array = new JsonArray();
+        for (Item item : items.values()) {
+            array.add(item.toJson());
+        }
+        final JsonObject obj = new JsonObject()
+                .add("mode", mode)
+                .add("created_at", createdAt)
+                .add("items", array);
+        preferences.edit().putString(KEY, obj.toString()).apply();
+        dirty = false;
+    }
+
+    public synchronized void saveIfChanged() {
+        if (dirty) {
+            save();
+        }
+    }
+
+    public synchronized void clear() {
+        items.clear();
+        resumed = false;
+        dirty = false;
+        preferences.edit().remove(KEY).apply();
+    }
+}
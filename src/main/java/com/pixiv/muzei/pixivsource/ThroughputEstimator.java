@@ -0,0 +1,38 @@
+package com.pixiv.muzei.pixivsource;
+
+// Exponentially weighted moving average of the download throughput, kept
+// separately for metered and unmetered networks and persisted across runs.
+public class ThroughputEstimator {
+    private static final String PREFERENCES_NAME = "network_throughput";
+    // weight of the newest sample
+    private static final float ALPHA = 0.3f;
+    // latency dominates the transfer time of anything smaller
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    private final KeyValueStore preferences;
+
+    public ThroughputEstimator(Platform platform) {
+        this.preferences = platform.getStore(PREFERENCES_NAME);
+    }
+
+    public synchronized void record(boolean metered, long bytes, long millis) {
+        if (bytes < MIN_SAMPLE_BYTES || millis <= 0) {
+            return;
+        }
+        final String key = getKey(metered);
+        final float sample = bytes * 1000f / millis;
+        final float estimate = preferences.getFloat(key, -1);
+        preferences.edit()
+                .putFloat(key, estimate < 0 ? sample : ALPHA * sample + (1 - ALPHA) * estimate)
+                .apply();
+    }
+
+    // Bytes per second, or a negative value before the first sample.
+    public synchronized float getBytesPerSecond(boolean metered) {
+        return preferences.getFloat(getKey(metered), -1);
+    }
+
+    private static String getKey(boolean metered) {
+        return metered ? "metered" : "unmetered";
+    }
+}
@@ -1,13 +1,19 @@
 package com.pixiv.muzei.pixivsource.settings;
 
+import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceFragment;
+import android.preference.PreferenceScreen;
 import android.util.Log;
 
+import com.pixiv.muzei.pixivsource.AndroidPlatform;
 import com.pixiv.muzei.pixivsource.PixivArtWorker;
 import com.pixiv.muzei.pixivsource.R;
+import com.pixiv.muzei.pixivsource.RunMetrics;
 
 public class SettingsFragment extends PreferenceFragment {
     private static final String LOG_TAG = "muzei.PixivArt.Settings";
@@ -15,11 +21,14 @@ public class SettingsFragment extends PreferenceFragment {
     private OnSharedPreferenceChangeListener preferenceChangeListener;
     private String currentUpdateMode;
     private String newUpdateMode;
+    private boolean scheduleChanged = false;
+    private Context context;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.preferences);
+        context = getActivity().getApplicationContext();
 
         final SharedPreferences preferences = getPreferenceManager().getSharedPreferences();
         newUpdateMode = currentUpdateMode =
@@ -30,6 +39,10 @@ public class SettingsFragment extends PreferenceFragment {
         preferenceChangeListener = new OnSharedPreferenceChangeListener() {
             @Override
             public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                if (key.equals("pref_autoRefresh") || key.equals("pref_unmeteredOnly")) {
+                    scheduleChanged = true;
+                    return;
+                }
                 if (!key.equals("pref_updateMode")) {
                     return;
                 }
@@ -41,6 +54,18 @@ public class SettingsFragment extends PreferenceFragment {
         };
     }
 
+    @Override
+    public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+        if (!"pref_exportMetrics".equals(preference.getKey())) {
+            return super.onPreferenceTreeClick(preferenceScreen, preference);
+        }
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_TEXT, RunMetrics.export(new AndroidPlatform(getActivity())));
+        startActivity(Intent.createChooser(intent, getString(R.string.pref_exportMetrics)));
+        return true;
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -60,10 +85,14 @@ public class SettingsFragment extends PreferenceFragment {
         super.onDestroy();
 
         if (currentUpdateMode.equals(newUpdateMode)) {
+            if (scheduleChanged) {
+                PixivArtWorker.schedulePeriodicLoad(context, true);
+            }
             return;
         }
         Log.d(LOG_TAG, "new update mode: " + newUpdateMode);
-        // request reload
-        PixivArtWorker.enqueLoad();
+        // request reload, dropping a queued load of the old mode
+        PixivArtWorker.enqueReload(context);
+        PixivArtWorker.schedulePeriodicLoad(context, true);
     }
 }